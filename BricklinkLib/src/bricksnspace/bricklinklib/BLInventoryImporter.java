@@ -0,0 +1,101 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.bricklinklib;
+
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.swing.SwingWorker;
+
+
+/**
+ * Imports in background Bricklink set inventories, one file for every set<br>
+ * Every inventory replaces old inventory of its set, in its own transaction,
+ * see {@link BricklinkInventory}. Progress is by number of sets imported.
+ * @see javax.swing.SwingWorker
+ *
+ * @author Mario Pascucci
+ */
+public class BLInventoryImporter extends SwingWorker<Integer, Void> {
+
+	private final LinkedHashMap<String,CatalogSource> inventories;
+
+
+	/**
+	 * @param setid Bricklink set id
+	 * @param inventory XML file with set inventory
+	 */
+	public BLInventoryImporter(String setid, File inventory) {
+
+		inventories = new LinkedHashMap<String,CatalogSource>();
+		inventories.put(setid, CatalogSource.fromFile(inventory));
+	}
+
+
+	/**
+	 * Imports several inventories, in map order
+	 * @param inventories inventory source for every set id
+	 */
+	public BLInventoryImporter(Map<String,CatalogSource> inventories) {
+
+		this.inventories = new LinkedHashMap<String,CatalogSource>(inventories);
+	}
+
+
+	/**
+	 * Imports inventory of a set
+	 * @param setid Bricklink set id
+	 * @param src inventory source
+	 * @param listener progress listener, may be <code>null</code>
+	 * @return number of inventory lines imported
+	 * @throws Exception
+	 */
+	static int importInventory(String setid, CatalogSource src, CatalogImporter.ProgressListener listener) throws Exception {
+
+		CatalogImporter<BricklinkInventory> imp;
+
+		imp = new CatalogImporter<BricklinkInventory>(BricklinkInventory.Mapping.NAME,
+				new BricklinkInventory.Mapping(), new BricklinkInventory.Sink(setid));
+		// same file name and content can belong to different sets
+		imp.setSkipUnchanged(false);
+		return imp.doImport(src, listener);
+	}
+
+
+	@Override
+	protected Integer doInBackground() throws Exception {
+
+		int i = 0, lines = 0;
+
+		setProgress(0);
+		for (Map.Entry<String,CatalogSource> e : inventories.entrySet()) {
+			if (isCancelled())
+				break;
+			lines += importInventory(e.getKey(), e.getValue(), null);
+			i++;
+			setProgress(i * 100 / inventories.size());
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.bricklinklib;
+
+
+import java.io.File;
+
+import javax.swing.SwingWorker;
+
+
+/**
+ * Imports in background a Bricklink catalog with any item type, in a single pass<br>
+ * parts, sets, minifigs, gear, books and instructions are stored in their own tables,
+ * see {@link BricklinkItem}. Categories must be already imported.
+ * @see javax.swing.SwingWorker
+ *
+ * @author Mario Pascucci
+ */
+public class BLItemImporter extends SwingWorker<Integer, Void> {
+
+	CatalogSource blitems;
+	private volatile ImportStats stats = null;
+
+
+	/**
+	 * @param blitems XML file with Bricklink catalog dump
+	 */
+	public BLItemImporter(File blitems) {
+
+		this.blitems = CatalogSource.fromFile(blitems);
+	}
+
+
+	/**
+	 * Imports catalog from any source: compressed file, zip entry, stream or channel
+	 * @param src catalog source
+	 */
+	public BLItemImporter(CatalogSource src) {
+
+		this.blitems = src;
+	}
+
+
+	/**
+	 * @return metrics of import, available when import is done, or null if import didn't start
+	 */
+	public ImportStats getStats() {
+		return stats;
+	}
+
+
+	@Override
+	protected Integer doInBackground() throws Exception {
+
+		CatalogImporter<BricklinkItem> imp;
+
+		imp = new CatalogImporter<BricklinkItem>(BricklinkItem.Mapping.NAME, new BricklinkItem.Mapping(), new ItemRouter());
+		try {
+			return imp.doImport(blitems, new CatalogImporter.ProgressListener() {
+
+				@Override
+				public void progress(int percent) {
+					setProgress(percent);
+				}
+			});
+		} finally {
+			stats = imp.getStats();
+		}
+	}
+
+}
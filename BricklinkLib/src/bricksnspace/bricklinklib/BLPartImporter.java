@@ -24,15 +24,8 @@ package bricksnspace.bricklinklib;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.LineNumberReader;
+
 import javax.swing.SwingWorker;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.XMLEvent;
 
 
 /*
@@ -42,179 +35,162 @@ import javax.xml.stream.events.XMLEvent;
  */
 public class BLPartImporter extends SwingWorker<Integer, Void> {
 
-	File blparts;
+	CatalogSource blparts;
+	private volatile ImportStats stats = null;
+	private boolean bulkLoad = false;
+	private boolean singleType = false;
+	private boolean shadowTable = false;
+	private ConnectionProvider writerConnections = null;
+	private int writers = 1;
 
 	/*
 	 * @param dbd Brick DB object
-	 * @param x an XMLEventReader 
-	 * @param lineNo number of parts to process
+	 * @param blparts XML file for BLink part catalog dump
 	 */
 	public BLPartImporter(File blparts) {
 
-		this.blparts = blparts;
+		this.blparts = CatalogSource.fromFile(blparts);
+	}
+	
+	
+	/**
+	 * Imports part catalog from any source: compressed file, zip entry, stream or channel
+	 * @param src catalog source
+	 */
+	public BLPartImporter(CatalogSource src) {
+
+		this.blparts = src;
+	}
+	
+	/**
+	 * @return true if part table is rebuilt with a bulk load
+	 */
+	public boolean isBulkLoad() {
+		return bulkLoad;
+	}
+
+
+	/**
+	 * Selects bulk load, for first install or recovery: part table is dropped and rebuilt 
+	 * from import with H2 CSVREAD. It is faster than incremental update of a full table, 
+	 * and about as fast as incremental import in an empty table, but deleted parts 
+	 * are lost. Must be set before import is started.
+	 * @param bulkLoad if true rebuilds table with a bulk load, if false (default) 
+	 *   updates table incrementally
+	 */
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
 	}
 	
+	
+	/**
+	 * @return true if a tab-delimited file is declared of parts only
+	 */
+	public boolean isSingleType() {
+		return singleType;
+	}
+
+
+	/**
+	 * Declares a tab-delimited file of parts only, so it can lack "Item Type" column. 
+	 * Must be set before import is started.
+	 * @param singleType if true a file without "Item Type" column is imported as parts, 
+	 *   if false (default) it is rejected
+	 */
+	public void setSingleType(boolean singleType) {
+		this.singleType = singleType;
+	}
+	
+	
+	/**
+	 * @return true if import updates a shadow copy of part table
+	 */
+	public boolean isShadowTable() {
+		return shadowTable;
+	}
+
+
+	/**
+	 * Selects shadow table update: a copy of part table is updated and replaces part table 
+	 * when import is complete, so part table is readable at full speed for the whole import.
+	 * Full text search isn't: its index can't move with the table, and is rebuilt after swap, 
+	 * so searches on parts find nothing until rebuild is complete. Writes to parts from 
+	 * other threads wait for import end. An interrupted import doesn't resume. Must be set before import is started, ignored 
+	 * with bulk load, that always loads a shadow table.
+	 * @param shadowTable if true updates a shadow table, if false (default) updates 
+	 *   part table in place, with checkpoints
+	 */
+	public void setShadowTable(boolean shadowTable) {
+		this.shadowTable = shadowTable;
+	}
+	
+	
+	/**
+	 * @return number of parallel writers, 1 if parts are written on library connection
+	 */
+	public int getWriters() {
+		return writers;
+	}
+
+
+	/**
+	 * Selects parallel writers: parts are partitioned by Bricklink id among writer threads, 
+	 * each with its own connection, written in part table and committed together with a 
+	 * two-phase commit at end of import. Full text search on parts is unavailable 
+	 * during import. An interrupted import doesn't resume. Must be set before import is started, 
+	 * ignored with bulk load or shadow table.
+	 * @param provider source of writer connections, to the same database as library
+	 * @param writers number of writers, 1 (default) to write on library connection
+	 */
+	public void setWriters(ConnectionProvider provider, int writers) {
+		
+		if (writers > 1 && provider == null)
+			throw new IllegalArgumentException("[BLPartImporter] parallel writers need a connection provider");
+		this.writerConnections = provider;
+		this.writers = Math.max(writers, 1);
+	}
+	
+	
+	/**
+	 * @return metrics of import, available when import is done, or null if import didn't start
+	 */
+	public ImportStats getStats() {
+		return stats;
+	}
+	
+	
 	@Override
 	protected Integer doInBackground() throws Exception {
 		
-		int i = 0;
-		int lineNo = 0;
-		XMLEvent e;
-		boolean isDoc,isCatalog,isItem;
-		Characters ch;
-		String itemType,tag,line;
-		LineNumberReader lnr;
-		XMLInputFactory xmlFact;
-		BricklinkPart bp = new BricklinkPart();
-		XMLEventReader xer;
+		CatalogImporter<BricklinkPart> imp;
 		
-		lnr = new LineNumberReader(new FileReader(blparts));
-		while ((line = lnr.readLine()) != null) {
-			if (line.toLowerCase().indexOf("/itemid") > -1)
-				lineNo++;
+		if (bulkLoad) {
+			imp = new CatalogImporter<BricklinkPart>(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(), new BricklinkPart.BulkSink());
+			// a rebuild is needed even if file is unchanged
+			imp.setSkipUnchanged(false);
 		}
-		lnr.close();
-		xmlFact = XMLInputFactory.newInstance();
-		xmlFact.setProperty(XMLInputFactory.IS_COALESCING,true);
-		xer = xmlFact.createXMLEventReader(blparts.getPath(), new FileInputStream(blparts));
-		setProgress(0);
-		isDoc = false;
-		isCatalog = false;
-		isItem = false;
-		itemType = "";
-		bp.blid = "";
-		tag = "";
-		bp.name = "";
-		bp.catId = 0;
-		bp.x = 0.0f;
-		bp.y = 0.0f;
-		bp.z = 0.0f;
-		bp.weight = 0.0f;
-		BricklinkPart.beginUpdate();
-		while (xer.hasNext()) {
-			e = xer.nextEvent();
-			switch (e.getEventType()) {
-			case XMLEvent.START_DOCUMENT:
-				isDoc = true;
-				break;
-			case XMLEvent.START_ELEMENT:
-				tag = e.asStartElement().getName().getLocalPart();
-				if (tag == "ITEM" && isCatalog) {
-					isItem = true;
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = true;
-				}
-				break;
-			case XMLEvent.END_ELEMENT:
-				tag = e.asEndElement().getName().getLocalPart();
-				if (tag == "ITEM" && isItem) {
-					isItem = false;
-					bp.deleted = false;
-					//////////////////////////////////////////////////
-					// XXX: remove when BrickLink fixes XML export for special char (entities)
-					// Descr: char like '(' or '"' are coded in file as: &amp;#40; &amp;#34;
-					// XMLInputFactory handles "&amp;" -> '&' but leave "#40;"
-					// these lines will convert the &#NN; to right entity
-					if (bp.name.indexOf("&#") != -1) {
-						int idx = 0;
-						while ((idx = bp.name.indexOf("&#")) != -1) {
-							bp.name = bp.name.replaceFirst("&#\\d\\d;", 
-									String.valueOf((char)Integer.parseInt(bp.name.substring(idx+2, idx+4))));
-						}
-					}
-					// end of xxx.
-					//////////////////////////////////////////////////
-					if (itemType.equals("P")) {
-						BricklinkPart dbbp = BricklinkPart.getById(bp.blid);
-						if (dbbp != null) {
-							bp.id = dbbp.id;
-							bp.update();
-						}
-						else {
-							bp.insert();
-						}
-						i++;
-						setProgress((i*100)/lineNo);
-					}
-					itemType = "";
-					bp.blid = "";
-					tag = "";
-					bp.name = "";
-					bp.catId = 0;
-					bp.x = 0.0f;
-					bp.y = 0.0f;
-					bp.z = 0.0f;
-					bp.weight = 0.0f;
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = false;
-				}
-				break;
-			case XMLEvent.CHARACTERS:
-				ch = e.asCharacters();
-				if (!ch.isIgnorableWhiteSpace() && !ch.isWhiteSpace()) {
-					if (tag == "ITEMID" && isItem) {
-						bp.blid = ch.getData().trim();
-					}
-					else if (tag == "ITEMTYPE" && isItem) {
-						itemType = ch.getData().trim();
-					}
-					else if (tag == "ITEMNAME" && isItem) {
-						bp.name = ch.getData().trim();
-					}
-					else if (tag == "CATEGORY" && isItem) {
-						try {
-							bp.catId = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							bp.catId = 0;
-						}
-					}
-					else if (tag == "ITEMWEIGHT" && isItem) {
-						try {
-							bp.weight = Float.parseFloat(ch.getData());
-						} catch (NumberFormatException e1) {
-							bp.weight = 0.0f;
-						}
-					}
-					else if (tag == "ITEMDIMX" && isItem) {
-						try {
-							bp.x = Float.parseFloat(ch.getData());
-						} catch (NumberFormatException e1) {
-							bp.x = 0.0f;
-						}
-					}
-					else if (tag == "ITEMDIMY" && isItem) {
-						try {
-							bp.y = Float.parseFloat(ch.getData());
-						} catch (NumberFormatException e1) {
-							bp.y = 0.0f;
-						}
-					}
-					else if (tag == "ITEMDIMZ" && isItem) {
-						try {
-							bp.z = Float.parseFloat(ch.getData());
-						} catch (NumberFormatException e1) {
-							bp.z = 0.0f;
-						}
-					}
-				}
-			}
-		}
-		try {
-			xer.close();
-		} catch (XMLStreamException ex) {
-			;
+		else if (shadowTable) {
+			imp = new CatalogImporter<BricklinkPart>(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(), new BricklinkPart.ShadowSink());
 		}
-		if (i == 0) {
-			// no parts in update?!?
-			BricklinkPart.abortUpdate();
+		else if (writers > 1) {
+			imp = new CatalogImporter<BricklinkPart>(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(), 
+					new BricklinkPart.ParallelSink(writerConnections, writers));
 		}
 		else {
-			BricklinkPart.endUpdate();
+			imp = new CatalogImporter<BricklinkPart>(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(), new BricklinkPart.Sink());
+		}
+		imp.setSingleType(singleType);
+		try {
+			return imp.doImport(blparts, new CatalogImporter.ProgressListener() {
+				
+				@Override
+				public void progress(int percent) {
+					setProgress(percent);
+				}
+			});
+		} finally {
+			stats = imp.getStats();
 		}
-		BricklinkPart.createFTS();
-		return i;
 	}
 	
 }
@@ -19,18 +19,8 @@
 package bricksnspace.bricklinklib;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.LineNumberReader;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import javax.swing.SwingWorker;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.XMLEvent;
 
 
 /**
@@ -39,7 +29,10 @@ import javax.xml.stream.events.XMLEvent;
  */
 public class BLSetImporter extends SwingWorker<Integer, Void> {
 
-	File blset;
+	CatalogSource blset;
+	private volatile ImportStats stats = null;
+	private boolean bulkLoad = false;
+	private boolean singleType = false;
 
 	/*
 	 * @param dbd Brick DB object
@@ -47,132 +40,93 @@ public class BLSetImporter extends SwingWorker<Integer, Void> {
 	 */
 	public BLSetImporter(File blset) {
 
-		this.blset = blset;
+		this.blset = CatalogSource.fromFile(blset);
 		
 	}
 	
+	
+	/**
+	 * Imports set catalog from any source: compressed file, zip entry, stream or channel
+	 * @param src catalog source
+	 */
+	public BLSetImporter(CatalogSource src) {
+
+		this.blset = src;
+	}
+	
+	/**
+	 * @return true if set table is rebuilt with a bulk load
+	 */
+	public boolean isBulkLoad() {
+		return bulkLoad;
+	}
+
+
+	/**
+	 * Selects bulk load, for first install or recovery: set table is dropped and rebuilt 
+	 * from import with H2 CSVREAD. It is faster than incremental update of a full table, 
+	 * and about as fast as incremental import in an empty table, but deleted sets 
+	 * are lost. Must be set before import is started.
+	 * @param bulkLoad if true rebuilds table with a bulk load, if false (default) 
+	 *   updates table incrementally
+	 */
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+	
+	
+	/**
+	 * @return true if a tab-delimited file is declared of sets only
+	 */
+	public boolean isSingleType() {
+		return singleType;
+	}
+
+
+	/**
+	 * Declares a tab-delimited file of sets only, so it can lack "Item Type" column. 
+	 * Must be set before import is started.
+	 * @param singleType if true a file without "Item Type" column is imported as sets, 
+	 *   if false (default) it is rejected
+	 */
+	public void setSingleType(boolean singleType) {
+		this.singleType = singleType;
+	}
+	
+	
+	/**
+	 * @return metrics of import, available when import is done, or null if import didn't start
+	 */
+	public ImportStats getStats() {
+		return stats;
+	}
+	
+	
 	@Override
 	protected Integer doInBackground() throws Exception {
-		int i = 0;
-		XMLEvent e;
-		boolean isDoc,isCatalog,isItem;
-		Characters ch;
-		String itemType,tag;
-		BricklinkSet bs = new BricklinkSet();
-		String line;
-		int lineNo;
-		LineNumberReader lnr;
-		XMLInputFactory xmlFact;
 		
-		lnr = new LineNumberReader(new FileReader(blset));
-		lineNo = 0;
-		while ((line = lnr.readLine()) != null) {
-			if (line.toLowerCase().indexOf("/itemid") > -1)
-				lineNo++;
+		CatalogImporter<BricklinkSet> imp;
+		
+		if (bulkLoad) {
+			imp = new CatalogImporter<BricklinkSet>(BricklinkSet.Mapping.NAME, new BricklinkSet.Mapping(), new BricklinkSet.BulkSink());
+			// a rebuild is needed even if file is unchanged
+			imp.setSkipUnchanged(false);
 		}
-		lnr.close();
-		xmlFact = XMLInputFactory.newInstance();
-		xmlFact.setProperty(XMLInputFactory.IS_COALESCING,true);
-		XMLEventReader xer = xmlFact.createXMLEventReader(blset.getPath(), new FileInputStream(blset));
-		setProgress(0);
-		isDoc = false;
-		isCatalog = false;
-		isItem = false;
-		itemType = "";
-		bs.setid = "";
-		tag = "";
-		bs.name = "";
-		bs.catid = 0;
-		bs.year = 0;
-		BricklinkSet.createTable();
-		while (xer.hasNext()) {
-			e = xer.nextEvent();
-			switch (e.getEventType()) {
-			case XMLEvent.START_DOCUMENT:
-				isDoc = true;
-				break;
-			case XMLEvent.START_ELEMENT:
-				tag = e.asStartElement().getName().getLocalPart();
-				if (tag == "ITEM" && isCatalog) {
-					isItem = true;
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = true;
-				}
-				break;
-			case XMLEvent.END_ELEMENT:
-				tag = e.asEndElement().getName().getLocalPart();
-				if (tag == "ITEM" && isItem) {
-					isItem = false;
-					//////////////////////////////////////////////////
-					// XXX: remove when BrickLink fixes XML export for special char (entities)
-					// Descr: char like '(' or '"' are coded in file as: &amp;#40; &amp;#34;
-					// XMLInputFactory handles "&amp;" -> '&' but leave "#40;"
-					// these lines will convert the &#NN; to right entity
-					if (bs.name.indexOf("&#") != -1) {
-						int idx = 0;
-						while ((idx = bs.name.indexOf("&#")) != -1) {
-							bs.name = bs.name.replaceFirst("&#\\d\\d;", 
-									String.valueOf((char)Integer.parseInt(bs.name.substring(idx+2, idx+4))));
-						}
-					}
-					// end of xxx.
-					//////////////////////////////////////////////////
-					if (itemType.equals("S")) {
-						bs.insert();
-					}
-					itemType = "";
-					bs.setid = "";
-					tag = "";
-					bs.name = "";
-					bs.catid = 0;
-					bs.year = 0;
-					i++;
-					setProgress((i*100)/lineNo);
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = false;
-				}
-				break;
-			case XMLEvent.ENTITY_REFERENCE:
-				Logger.getGlobal().log(Level.INFO,e.asCharacters().toString());
-				break;
-			case XMLEvent.CHARACTERS:
-				ch = e.asCharacters();
-				if (!ch.isIgnorableWhiteSpace() && !ch.isWhiteSpace()) {
-					if (tag == "ITEMID" && isItem) {
-						bs.setid = ch.getData().trim();
-					}
-					else if (tag == "ITEMTYPE" && isItem) {
-						itemType = ch.getData().trim();
-					}
-					else if (tag == "ITEMNAME" && isItem) {
-						bs.name = ch.getData().trim();
-					}
-					else if (tag == "CATEGORY" && isItem) {
-						try {
-							bs.catid = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							bs.catid = 0;
-						}
-					}
-					else if (tag == "ITEMYEAR" && isItem) {
-						try {
-							bs.year = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							bs.year = 0;
-						}
-					}
-				}
-			}
+		else {
+			imp = new CatalogImporter<BricklinkSet>(BricklinkSet.Mapping.NAME, new BricklinkSet.Mapping(), new BricklinkSet.Sink());
 		}
+		imp.setSingleType(singleType);
 		try {
-			xer.close();
-		} catch (XMLStreamException ex) {
-			;
+			return imp.doImport(blset, new CatalogImporter.ProgressListener() {
+				
+				@Override
+				public void progress(int percent) {
+					setProgress(percent);
+				}
+			});
+		} finally {
+			stats = imp.getStats();
 		}
-		BricklinkSet.createFTS();
-		return lineNo;
 	}
 	
 }
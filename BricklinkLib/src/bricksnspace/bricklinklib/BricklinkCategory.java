@@ -24,6 +24,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Vector;
 
 
@@ -42,6 +45,215 @@ public class BricklinkCategory {
 	protected String name;
 	public static final String table = "blcategories";
 	private static PreparedStatement insertPS = null;
+	private static PreparedStatement mergePS = null;
+	private static PreparedStatement deletePS = null;
+	/** in-memory copy of category table, replaced as a whole on refresh */
+	private static volatile Cache cache = new Cache(new int[0], new BricklinkCategory[0]);
+	
+	
+	
+	/**
+	 * Immutable category cache, sorted by Bricklink category id
+	 */
+	private static class Cache {
+		
+		private final int[] catids;
+		private final BricklinkCategory[] cats;
+		
+		private Cache(int[] catids, BricklinkCategory[] cats) {
+			this.catids = catids;
+			this.cats = cats;
+		}
+		
+		private BricklinkCategory get(int catid) {
+			
+			int i = Arrays.binarySearch(catids, catid);
+			return i < 0 ? null : cats[i];
+		}
+		
+		/**
+		 * @return a new cache with category added, or replaced if category id is already in cache
+		 */
+		private Cache with(BricklinkCategory bc) {
+			
+			int i = Arrays.binarySearch(catids, bc.catid);
+			int[] ids;
+			BricklinkCategory[] cs;
+			
+			if (i >= 0) {
+				cs = cats.clone();
+				cs[i] = bc;
+				return new Cache(catids, cs);
+			}
+			i = -i - 1;
+			ids = new int[catids.length + 1];
+			cs = new BricklinkCategory[cats.length + 1];
+			System.arraycopy(catids, 0, ids, 0, i);
+			System.arraycopy(cats, 0, cs, 0, i);
+			ids[i] = bc.catid;
+			cs[i] = bc;
+			System.arraycopy(catids, i, ids, i + 1, catids.length - i);
+			System.arraycopy(cats, i, cs, i + 1, cats.length - i);
+			return new Cache(ids, cs);
+		}
+	}
+	
+	
+	
+	/**
+	 * Category catalog mapping
+	 */
+	static class Mapping implements CatalogMapping<BricklinkCategory> {
+		
+		/** catalog name */
+		static final String NAME = "categories";
+		private static final int CATEGORY = 0;
+		private static final int CATEGORYNAME = 1;
+		private static final String[] TAGS = {
+			"CATEGORY", "CATEGORYNAME"
+		};
+		
+		@Override
+		public String getItemType() {
+			return null;
+		}
+
+		@Override
+		public String getRootTag() {
+			return "CATALOG";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "CATEGORY";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkCategory newItem() {
+			
+			BricklinkCategory bc = new BricklinkCategory();
+			bc.name = "";
+			return bc;
+		}
+
+		@Override
+		public void setField(BricklinkCategory bc, int tag, char[] text, int start, int len) {
+			
+			switch (tag) {
+			case CATEGORY:
+				bc.catid = CharParser.parseInt(text, start, len);
+				break;
+			case CATEGORYNAME:
+				bc.name = CharParser.getTrimmed(text, start, len);
+				break;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Updates category table from import, in a single transaction committed at checkpoints<br>
+	 * categories are merged by Bricklink id, so row ids don't change; categories not in 
+	 * import are removed at end. If import fails, table is rolled back to last checkpoint.<br>
+	 * Parts, sets and items store category name, so if any category is added, renamed or removed
+	 * their last import is forgotten: next import of an unchanged file isn't skipped, and
+	 * updates rows with new category names.
+	 */
+	static class Sink implements CheckpointSink<BricklinkCategory> {
+		
+		private HashSet<Integer> existing = null;
+		private HashSet<Integer> seen = null;
+		private ImportStats stats = null;
+		private boolean changed = false;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			stats = ImportStats.current(Mapping.NAME);
+			seen = new HashSet<Integer>();
+			existing = getAllCatids();
+			changed = false;
+			startUpdate();
+		}
+
+		@Override
+		public void write(List<BricklinkCategory> items) throws SQLException {
+			
+			for (BricklinkCategory bc : items) {
+				if (!seen.add(bc.catid))
+					continue;
+				bc.addMergeBatch();
+				if (existing.contains(bc.catid)) {
+					stats.addUpdates(1);
+					// cache still holds names before this import
+					if (!getNameById(bc.catid).equals(bc.name))
+						changed = true;
+				}
+				else {
+					stats.addInserts(1);
+					changed = true;
+				}
+			}
+			mergePS.executeBatch();
+		}
+
+		@Override
+		public void checkpoint() throws SQLException {
+			
+			// a resumed import can't see changes already committed
+			if (changed)
+				forgetDependentImports();
+			BricklinkLib.db.commit();
+		}
+
+		@Override
+		public void skip(List<BricklinkCategory> items) throws SQLException {
+			
+			// merge is idempotent, write again
+			write(items);
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			if (count == 0) {
+				// no categories in import?!? keep current list
+				rollbackUpdate();
+				return;
+			}
+			existing.removeAll(seen);
+			for (int catid : existing) {
+				deletePS.setInt(1, catid);
+				deletePS.addBatch();
+			}
+			deletePS.executeBatch();
+			stats.addDeleted(existing.size());
+			if (changed || !existing.isEmpty()) {
+				forgetDependentImports();
+			}
+			commitUpdate();
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			rollbackUpdate();
+		}
+		
+		
+		private void forgetDependentImports() throws SQLException {
+			
+			ImportState.clear(BricklinkPart.Mapping.NAME);
+			ImportState.clear(BricklinkSet.Mapping.NAME);
+			ImportState.clear(BricklinkItem.Mapping.NAME);
+		}
+	}
 	
 	
 	
@@ -52,7 +264,40 @@ public class BricklinkCategory {
 	 */
 	public static void init() throws SQLException {
 
-		insertPS = BricklinkLib.db.prepareStatement("INSERT INTO "+table+" (catid,name) VALUES (?,?)");
+		insertPS = BricklinkLib.db.prepareStatement("INSERT INTO "+table+" (catid,name) VALUES (?,?)",
+				Statement.RETURN_GENERATED_KEYS);
+		mergePS = BricklinkLib.db.prepareStatement("MERGE INTO "+table+" (catid,name) KEY(catid) VALUES (?,?)");
+		deletePS = BricklinkLib.db.prepareStatement("DELETE FROM "+table+" WHERE catid=?");
+		refreshCache();
+	}
+	
+	
+	
+	/**
+	 * Reloads category cache from database<br>
+	 * cache is replaced in a single step, readers see old or new categories, never a mix
+	 * @throws SQLException
+	 */
+	public static synchronized void refreshCache() throws SQLException {
+		
+		Statement st = BricklinkLib.db.createStatement();
+		ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM "+table);
+		rs.next();
+		int n = rs.getInt(1);
+		int[] catids = new int[n];
+		BricklinkCategory[] cats = new BricklinkCategory[n];
+		int i = 0;
+		rs = st.executeQuery("SELECT id,catid,name FROM "+table+" ORDER BY catid");
+		while (rs.next() && i < n) {
+			BricklinkCategory bl = new BricklinkCategory();
+			bl.id = rs.getInt("id");
+			bl.catid = rs.getInt("catid");
+			bl.name = rs.getString("name");
+			catids[i] = bl.catid;
+			cats[i] = bl;
+			i++;
+		}
+		cache = new Cache(Arrays.copyOf(catids, i), Arrays.copyOf(cats, i));
 	}
 	
 	
@@ -120,20 +365,73 @@ public class BricklinkCategory {
 				"catid INT UNIQUE, " +
 				"name VARCHAR(255)" +
 				"); COMMIT ");
+		ImportState.clear(Mapping.NAME);
+		refreshCache();
 	}
 
 
 	
 	/**
-	 * insert current category in database
+	 * insert current category in database, and adds it to category cache
 	 * @throws SQLException
 	 */
 	public void insert() throws SQLException {
 		
+		ResultSet rs;
+		BricklinkCategory bc = new BricklinkCategory();
+		
 		insertPS.setInt(1, catid);
 		insertPS.setString(2, name);
 		insertPS.executeUpdate();
+		rs = insertPS.getGeneratedKeys();
+		if (rs.next())
+			id = rs.getInt(1);
+		bc.id = id;
+		bc.catid = catid;
+		bc.name = name;
+		addToCache(bc);
+	}
+	
+	
+	
+	/**
+	 * Adds a category to cache, copying cache arrays: readers keep using old cache
+	 * until new one is ready
+	 * @param bc category, not shared with callers
+	 */
+	private static synchronized void addToCache(BricklinkCategory bc) {
+		
+		cache = cache.with(bc);
+	}
+	
+	
+	
+	/**
+	 * queues insert or update of current category by Bricklink id
+	 * @throws SQLException
+	 */
+	void addMergeBatch() throws SQLException {
+		
+		mergePS.setInt(1, catid);
+		mergePS.setString(2, name);
+		mergePS.addBatch();
+	}
+	
+	
+	
+	/**
+	 * @return Bricklink id of all categories in table
+	 * @throws SQLException
+	 */
+	static HashSet<Integer> getAllCatids() throws SQLException {
 		
+		HashSet<Integer> catids = new HashSet<Integer>();
+		Statement st = BricklinkLib.db.createStatement();
+		ResultSet rs = st.executeQuery("SELECT catid FROM "+table);
+		while (rs.next()) {
+			catids.add(rs.getInt(1));
+		}
+		return catids;
 	}
 
 
@@ -143,7 +441,7 @@ public class BricklinkCategory {
 	 */
 	public void beginUpdate() throws SQLException {
 		
-		BricklinkLib.db.autocommitDisable();
+		startUpdate();
 	}
 	
 	
@@ -153,8 +451,7 @@ public class BricklinkCategory {
 	 */
 	public void abortUpdate() throws SQLException {
 		
-		BricklinkLib.db.rollback();
-		BricklinkLib.db.autocommitEnable();
+		rollbackUpdate();
 	}
 	
 	
@@ -164,8 +461,31 @@ public class BricklinkCategory {
 	 */
 	public void endUpdate() throws SQLException {
 		
+		commitUpdate();
+	}
+	
+	
+	private static void startUpdate() throws SQLException {
+		
+		BricklinkLib.db.autocommitDisable();
+	}
+	
+	
+	private static void rollbackUpdate() throws SQLException {
+		
+		mergePS.clearBatch();
+		deletePS.clearBatch();
+		BricklinkLib.db.rollback();
+		BricklinkLib.db.autocommitEnable();
+		refreshCache();
+	}
+	
+	
+	private static void commitUpdate() throws SQLException {
+		
 		BricklinkLib.db.commit();
 		BricklinkLib.db.autocommitEnable();
+		refreshCache();
 	}
 	
 	
@@ -174,39 +494,37 @@ public class BricklinkCategory {
 	// query functions
 	
 	/**
-	 * returns category name by id
+	 * returns category name by id, from category cache
 	 * @param id category to retrieve
 	 * @return category name corresponding to id or empty string if no category
 	 * @throws SQLException
 	 */
 	public static String getNameById(int id) throws SQLException {
 		
-		Statement st = BricklinkLib.db.createStatement();
-		ResultSet rs = st.executeQuery("Select name FROM "+table+" where catid="+id);
-		if (rs.next()) 
-			return rs.getString("name");
+		ImportStats stats = ImportStats.current();
+		long t = stats != null ? System.nanoTime() : 0;
+		
+		BricklinkCategory bl = cache.get(id);
+		if (stats != null)
+			stats.addLookup(System.nanoTime() - t);
+		if (bl != null) 
+			return bl.name;
 		return "";
 	}
 
 
 	
 	/**
-	 * return a copy of category object given id
+	 * return a copy of category object given id, from category cache
 	 * @param id category to retrieve
-	 * @return copy of category object
+	 * @return copy of category object or null if no category
 	 * @throws SQLException
 	 */
 	public static BricklinkCategory getById(int id) throws SQLException {
 		
-		Statement st = BricklinkLib.db.createStatement();
-		ResultSet rs = st.executeQuery("Select id,catid,name FROM "+table+" where catid="+id);
-		if (rs.next()) {
-			BricklinkCategory bl = new BricklinkCategory();
-			bl.id = rs.getInt("id");
-			bl.catid = rs.getInt("catid");
-			bl.name = rs.getString("name");
-			return bl;
-		}
+		BricklinkCategory bl = cache.get(id);
+		if (bl != null) 
+			return new BricklinkCategory(bl);
 		return null;
 	}
 
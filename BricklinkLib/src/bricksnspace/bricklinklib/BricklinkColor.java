@@ -21,7 +21,6 @@
 package bricksnspace.bricklinklib;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -29,12 +28,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.XMLEvent;
 
 
 
@@ -71,11 +68,185 @@ public class BricklinkColor {
 	protected static final String fieldsOrder = "id,name,rgb,type,inpart,inset,wanted,sell,fromy,toy";
 	public static final String table = "blcolors";
 	private static PreparedStatement insertPS = null;
+	private static PreparedStatement mergePS = null;
+	private static PreparedStatement deletePS = null;
 	private static HashMap<Integer,BricklinkColor>colorMap;
 	
 
 	
 	
+	/**
+	 * Color catalog mapping
+	 */
+	static class Mapping implements CatalogMapping<BricklinkColor> {
+		
+		/** catalog name */
+		static final String NAME = "colors";
+		private static final int COLOR = 0;
+		private static final int COLORTYPE = 1;
+		private static final int COLORNAME = 2;
+		private static final int COLORRGB = 3;
+		private static final int COLORCNTPARTS = 4;
+		private static final int COLORCNTSETS = 5;
+		private static final int COLORCNTWANTED = 6;
+		private static final int COLORCNTINV = 7;
+		private static final int COLORYEARFROM = 8;
+		private static final int COLORYEARTO = 9;
+		private static final String[] TAGS = {
+			"COLOR", "COLORTYPE", "COLORNAME", "COLORRGB", "COLORCNTPARTS", 
+			"COLORCNTSETS", "COLORCNTWANTED", "COLORCNTINV", "COLORYEARFROM", "COLORYEARTO"
+		};
+		
+		@Override
+		public String getItemType() {
+			return null;
+		}
+
+		@Override
+		public String getRootTag() {
+			return "CATALOG";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "COLOR";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkColor newItem() {
+			
+			BricklinkColor blc = new BricklinkColor();
+			blc.name = "";
+			blc.type = "";
+			// used if color has no RGB
+			blc.rgb = "#000000";
+			return blc;
+		}
+
+		@Override
+		public void setField(BricklinkColor blc, int tag, char[] text, int start, int len) {
+			
+			switch (tag) {
+			case COLOR:
+				blc.id = CharParser.parseInt(text, start, len);
+				break;
+			case COLORTYPE:
+				blc.type = CharParser.getTrimmed(text, start, len);
+				break;
+			case COLORNAME:
+				blc.name = CharParser.getTrimmed(text, start, len);
+				break;
+			case COLORRGB:
+				blc.rgb = "#" + CharParser.getTrimmed(text, start, len);
+				break;
+			case COLORCNTPARTS:
+				blc.inpart = CharParser.parseInt(text, start, len);
+				break;
+			case COLORCNTSETS:
+				blc.inset = CharParser.parseInt(text, start, len);
+				break;
+			case COLORCNTWANTED:
+				blc.wanted = CharParser.parseInt(text, start, len);
+				break;
+			case COLORCNTINV:
+				blc.sell = CharParser.parseInt(text, start, len);
+				break;
+			case COLORYEARFROM:
+				blc.fromy = CharParser.parseInt(text, start, len);
+				break;
+			case COLORYEARTO:
+				blc.toy = CharParser.parseInt(text, start, len);
+				break;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Updates color table from import, in a single transaction committed at checkpoints<br>
+	 * colors are merged by Bricklink id, colors not in import are removed at end.
+	 * If import fails, table is rolled back to last checkpoint.
+	 */
+	static class Sink implements CheckpointSink<BricklinkColor> {
+		
+		private HashSet<Integer> existing = null;
+		private HashSet<Integer> seen = null;
+		private ImportStats stats = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			stats = ImportStats.current(Mapping.NAME);
+			seen = new HashSet<Integer>();
+			existing = new HashSet<Integer>(getAllColor().keySet());
+			BricklinkLib.db.autocommitDisable();
+		}
+
+		@Override
+		public void write(List<BricklinkColor> items) throws SQLException {
+			
+			for (BricklinkColor blc : items) {
+				if (!seen.add(blc.id))
+					continue;
+				blc.addMergeBatch();
+				if (existing.contains(blc.id))
+					stats.addUpdates(1);
+				else
+					stats.addInserts(1);
+			}
+			mergePS.executeBatch();
+		}
+
+		@Override
+		public void checkpoint() throws SQLException {
+			
+			BricklinkLib.db.commit();
+		}
+
+		@Override
+		public void skip(List<BricklinkColor> items) throws SQLException {
+			
+			// merge is idempotent, write again
+			write(items);
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			if (count == 0) {
+				// no colors in import?!? keep current list
+				abort();
+				return;
+			}
+			existing.removeAll(seen);
+			for (int id : existing) {
+				deletePS.setInt(1, id);
+				deletePS.addBatch();
+			}
+			deletePS.executeBatch();
+			stats.addDeleted(existing.size());
+			BricklinkLib.db.commit();
+			BricklinkLib.db.autocommitEnable();
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			mergePS.clearBatch();
+			deletePS.clearBatch();
+			BricklinkLib.db.rollback();
+			BricklinkLib.db.autocommitEnable();
+		}
+	}
+	
+	
+	
 	/**
 	 * Empty constructor
 	 */
@@ -98,6 +269,10 @@ public class BricklinkColor {
 				"("+fieldsOrder+") VALUES " +
 				"(?,?,?,?,?,?,?,?,?,?)" +
 				";");
+		mergePS = BricklinkLib.db.prepareStatement("MERGE INTO " + table +
+				"("+fieldsOrder+") KEY(id) VALUES " +
+				"(?,?,?,?,?,?,?,?,?,?)");
+		deletePS = BricklinkLib.db.prepareStatement("DELETE FROM " + table + " WHERE id=?");
 		colorMap = getAllColor();
 	}
 	
@@ -126,6 +301,7 @@ public class BricklinkColor {
 				"fromy INT," +
 				"toy INT" +
 				"); COMMIT ");
+		ImportState.clear(Mapping.NAME);
 	}
 	
 	
@@ -136,20 +312,38 @@ public class BricklinkColor {
 	 */
 	public void insert() throws SQLException {
 		
-		insertPS.setInt(1, id);
-		insertPS.setString(2, name);
-		insertPS.setString(3, rgb);
-		insertPS.setString(4, type);
-		insertPS.setInt(5,inpart);
-		insertPS.setInt(6,inset);
-		insertPS.setInt(7,wanted);
-		insertPS.setInt(8,sell);
-		insertPS.setInt(9, fromy);
-		insertPS.setInt(10, toy);
-		
+		setFields(insertPS);
 		insertPS.executeUpdate();
 		
 	}
+	
+	
+	
+	/**
+	 * Queues insert or update of current object by Bricklink id
+	 * @throws SQLException
+	 */
+	void addMergeBatch() throws SQLException {
+		
+		setFields(mergePS);
+		mergePS.addBatch();
+	}
+	
+	
+	
+	private void setFields(PreparedStatement ps) throws SQLException {
+		
+		ps.setInt(1, id);
+		ps.setString(2, name);
+		ps.setString(3, rgb);
+		ps.setString(4, type);
+		ps.setInt(5,inpart);
+		ps.setInt(6,inset);
+		ps.setInt(7,wanted);
+		ps.setInt(8,sell);
+		ps.setInt(9, fromy);
+		ps.setInt(10, toy);
+	}
 
 	
 	
@@ -239,7 +433,7 @@ public class BricklinkColor {
 
 	/**
 	 * Imports Bricklink colors from XML color dump<br>
-	 * Clear color table first, but doesn't refresh color cache<br>
+	 * Updates color table in a transaction, but doesn't refresh color cache<br>
 	 * Uses file right from Bricklink catalog at http://www.bricklink.com/catalogDownload.asp 
 	 * @param fname file to read
 	 * @return number of color imported
@@ -249,161 +443,16 @@ public class BricklinkColor {
 	 */
 	public int doImport(File fname) throws IOException, XMLStreamException, SQLException {
 		
-		int i = 0;
-		XMLEvent e;
-		boolean isDoc,isCatalog,isItem;
-		Characters ch;
-		String tag;
-		//LineNumberReader lnr;
-		XMLInputFactory xmlFact;
-		BricklinkColor blc = new BricklinkColor();
-		XMLEventReader xer;
+		CatalogImporter<BricklinkColor> imp;
 		
-		xmlFact = XMLInputFactory.newInstance();
-		xmlFact.setProperty(XMLInputFactory.IS_COALESCING,true);
-		xer = xmlFact.createXMLEventReader(fname.getPath(), new FileInputStream(fname));
-		createTable();
-		isDoc = false;
-		isCatalog = false;
-		isItem = false;
-		tag = "";
-		blc.id = 0;
-		blc.name = "";
-		blc.rgb = "";
-		blc.type = "";
-		blc.inpart = 0;
-		blc.inset = 0;
-		blc.wanted = 0;
-		blc.sell = 0;
-		blc.fromy = 0;
-		blc.toy = 0;
-		while (xer.hasNext()) {
-			e = xer.nextEvent();
-			switch (e.getEventType()) {
-			case XMLEvent.START_DOCUMENT:
-				isDoc = true;
-				break;
-			case XMLEvent.START_ELEMENT:
-				tag = e.asStartElement().getName().getLocalPart();
-				if (tag == "ITEM" && isCatalog) {
-					isItem = true;
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = true;
-				}
-				break;
-			case XMLEvent.END_ELEMENT:
-				tag = e.asEndElement().getName().getLocalPart();
-				if (tag == "ITEM" && isItem) {
-					isItem = false;
-					//////////////////////////////////////////////////
-					// XXX: remove when BrickLink fixes XML export for special char (entities)
-					// Descr: char like '(' or '"' are coded in file as: &amp;#40; &amp;#34;
-					// XMLInputFactory handles "&amp;" -> '&' but leave "#40;"
-					// these lines will convert the &#NN; to right entity
-					if (blc.name.indexOf("&#") != -1) {
-						int idx = 0;
-						while ((idx = blc.name.indexOf("&#")) != -1) {
-							blc.name = blc.name.replaceFirst("&#\\d\\d;", 
-									String.valueOf((char)Integer.parseInt(blc.name.substring(idx+2, idx+4))));
-						}
-					}
-					// end of xxx.
-					//////////////////////////////////////////////////
-					if (blc.rgb.length() == 0) {
-						blc.rgb = "#000000";
-					}
-					else {
-						blc.rgb = "#" + blc.rgb;
-					}
-					blc.insert();
-					tag = "";
-					blc.id = 0;
-					blc.name = "";
-					blc.rgb = "";
-					blc.type = "";
-					blc.inpart = 0;
-					blc.inset = 0;
-					blc.wanted = 0;
-					blc.sell = 0;
-					blc.fromy = 0;
-					blc.toy = 0;
-					i++;
-				}
-				else if (tag == "CATALOG" && isDoc) {
-					isCatalog = false;
-				}
-				break;
-			case XMLEvent.CHARACTERS:
-				ch = e.asCharacters();
-				if (!ch.isIgnorableWhiteSpace() && !ch.isWhiteSpace()) {
-					if (tag == "COLOR" && isItem) {
-						try {
-							blc.id = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.id = 0;
-						}
-					}
-					else if (tag == "COLORTYPE" && isItem) {
-						blc.type = ch.getData().trim();
-					}
-					else if (tag == "COLORNAME" && isItem) {
-						blc.name = ch.getData().trim();
-					}
-					else if (tag == "COLORRGB" && isItem) {
-						blc.rgb = ch.getData().trim();
-					}
-					else if (tag == "COLORCNTPARTS" && isItem) {
-						try {
-							blc.inpart = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.inpart = 0;
-						}
-					}
-					else if (tag == "COLORCNTSETS" && isItem) {
-						try {
-							blc.inset = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.inset = 0;
-						}
-					}
-					else if (tag == "COLORCNTWANTED" && isItem) {
-						try {
-							blc.wanted = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.wanted = 0;
-						}
-					}
-					else if (tag == "COLORCNTINV" && isItem) {
-						try {
-							blc.sell = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.sell = 0;
-						}
-					}
-					else if (tag == "COLORYEARFROM" && isItem) {
-						try {
-							blc.fromy = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.fromy = 0;
-						}
-					}
-					else if (tag == "COLORYEARTO" && isItem) {
-						try {
-							blc.toy = Integer.parseInt(ch.getData());
-						} catch (NumberFormatException e1) {
-							blc.toy = 0;
-						}
-					}
-				}
-			}
-		}
+		imp = new CatalogImporter<BricklinkColor>(Mapping.NAME, new Mapping(), new Sink());
 		try {
-			xer.close();
-		} catch (XMLStreamException ex) {
-			;
+			return imp.doImport(fname, null);
+		} catch (IOException | XMLStreamException | SQLException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("[BricklinkColor] import interrupted", e);
 		}
-		return i;
 	}
 
 }
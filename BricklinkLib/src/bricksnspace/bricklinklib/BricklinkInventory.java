@@ -0,0 +1,535 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.bricklinklib;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A line of a Bricklink set inventory: an item, in a color, with quantity<br>
+ * Inventories are downloaded from Bricklink one set at a time, as XML with
+ * &lt;INVENTORY&gt; root, and imported by {@link BLInventoryImporter}.<br>
+ * Inventory table has an index by set, for set to items queries, and a reverse index
+ * by item type, item id, color and set, so "which sets contain part X in color Y" is
+ * answered by a single index range scan, without reading table rows.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class BricklinkInventory {
+
+	public static final String table = "blinventory";
+	/** color id for items without color, and to query items in any color */
+	public static final int NO_COLOR = -1;
+	protected int id;
+	/** set id this line belongs to */
+	protected String setid;
+	/** Bricklink item type, as in ITEMTYPE tag */
+	protected String itemType;
+	/** Bricklink item id */
+	protected String blid;
+	/** Bricklink color id, {@link #NO_COLOR} for items without color */
+	protected int color;
+	/** quantity in set */
+	protected int qty;
+	/** true if item is an extra part */
+	protected boolean extra;
+	/** true if item is an alternate part */
+	protected boolean alternate;
+	/** alternate group id, 0 if none */
+	protected int matchId;
+	/** true if item is a counterpart */
+	protected boolean counterpart;
+	protected final static String fieldsOrder = "setid,itemtype,blid,color,qty,extra,alternate,matchid,counterpart";
+	/** number of queued rows that triggers a batch execution */
+	private static int batchSize = 500;
+
+
+
+	public BricklinkInventory() {
+		;
+	}
+
+
+
+	/**
+	 * Catalog mapping for a set inventory<br>
+	 * set id isn't in inventory, it is set by {@link Sink}
+	 */
+	static class Mapping implements CatalogMapping<BricklinkInventory> {
+
+		/** catalog name */
+		static final String NAME = "inventory";
+		private static final int ITEMTYPE = 0;
+		private static final int ITEMID = 1;
+		private static final int COLOR = 2;
+		private static final int QTY = 3;
+		private static final int EXTRA = 4;
+		private static final int ALTERNATE = 5;
+		private static final int MATCHID = 6;
+		private static final int COUNTERPART = 7;
+		private static final String[] TAGS = {
+			"ITEMTYPE", "ITEMID", "COLOR", "QTY", "EXTRA", "ALTERNATE", "MATCHID", "COUNTERPART"
+		};
+
+		@Override
+		public String getItemType() {
+			return null;
+		}
+
+		@Override
+		public String getRootTag() {
+			return "INVENTORY";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "ITEMID";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkInventory newItem() {
+
+			BricklinkInventory bi = new BricklinkInventory();
+			bi.itemType = "";
+			bi.blid = "";
+			bi.color = NO_COLOR;
+			bi.qty = 1;
+			return bi;
+		}
+
+		private static boolean isYes(char[] text, int start, int len) {
+
+			String s = CharParser.getTrimmed(text, start, len);
+			return s.equalsIgnoreCase("Y");
+		}
+
+		@Override
+		public void setField(BricklinkInventory bi, int tag, char[] text, int start, int len) {
+
+			switch (tag) {
+			case ITEMTYPE:
+				bi.itemType = CharParser.getTrimmed(text, start, len);
+				break;
+			case ITEMID:
+				bi.blid = CharParser.getTrimmed(text, start, len);
+				break;
+			case COLOR:
+				bi.color = CharParser.parseInt(text, start, len);
+				break;
+			case QTY:
+				bi.qty = CharParser.parseInt(text, start, len);
+				break;
+			case EXTRA:
+				bi.extra = isYes(text, start, len);
+				break;
+			case ALTERNATE:
+				bi.alternate = isYes(text, start, len);
+				break;
+			case MATCHID:
+				bi.matchId = CharParser.parseInt(text, start, len);
+				break;
+			case COUNTERPART:
+				bi.counterpart = isYes(text, start, len);
+				break;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Writes imported inventory of a set, replacing old one<br>
+	 * old lines are deleted and new lines inserted in batches, in a single transaction:
+	 * queries see old or new inventory, never a partial one. An import with no lines
+	 * is rolled back, keeping old inventory.
+	 */
+	static class Sink implements CatalogSink<BricklinkInventory> {
+
+		private final String setid;
+		private PreparedStatement insertPS = null;
+		private int pending = 0;
+		private int deleted = 0;
+		private ImportStats stats = null;
+
+		/**
+		 * @param setid set of imported inventory
+		 */
+		Sink(String setid) {
+
+			if (setid == null || setid.length() == 0)
+				throw new IllegalArgumentException("[BricklinkInventory] undefined set id");
+			this.setid = setid;
+		}
+
+		@Override
+		public void begin() throws SQLException {
+
+			PreparedStatement ps;
+
+			stats = ImportStats.current(Mapping.NAME);
+			insertPS = BricklinkLib.db.prepareStatement("INSERT INTO "+table+" " +
+					"("+fieldsOrder+") VALUES (?,?,?,?,?,?,?,?,?)");
+			BricklinkLib.db.autocommitDisable();
+			ps = BricklinkLib.db.prepareStatement("DELETE FROM "+table+" WHERE setid=?");
+			ps.setString(1, setid);
+			deleted = ps.executeUpdate();
+		}
+
+		@Override
+		public void write(List<BricklinkInventory> items) throws SQLException {
+
+			for (BricklinkInventory bi : items) {
+				bi.setid = setid;
+				bi.setParams(insertPS);
+				insertPS.addBatch();
+				pending++;
+				if (pending >= batchSize) {
+					insertPS.executeBatch();
+					pending = 0;
+				}
+			}
+			stats.addInserts(items.size());
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+
+			if (count == 0) {
+				// no lines in inventory?!? keep old one
+				abort();
+				Logger.getGlobal().log(Level.WARNING,"[BricklinkInventory] set "+setid+
+						": no lines in import, old inventory kept");
+				return;
+			}
+			if (pending > 0) {
+				insertPS.executeBatch();
+				pending = 0;
+			}
+			stats.addDeleted(deleted);
+			BricklinkLib.db.commit();
+			BricklinkLib.db.autocommitEnable();
+			Logger.getGlobal().log(Level.INFO,"[BricklinkInventory] set "+setid+": "+count+" lines written, "+
+					deleted+" old lines replaced");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+
+			if (insertPS != null)
+				insertPS.clearBatch();
+			pending = 0;
+			BricklinkLib.db.rollback();
+			BricklinkLib.db.autocommitEnable();
+		}
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "BricklinkInventory [id=" + id + ", setid=" + setid + ", type=" + itemType + ", blid=" + blid
+				+ ", color=" + color + ", qty=" + qty + ", extra=" + extra + ", alternate=" + alternate
+				+ ", matchid=" + matchId + ", counterpart=" + counterpart + "]";
+	}
+
+
+	/*
+	 * get and set
+	 */
+
+
+	/**
+	 * @return set id
+	 */
+	public String getSetid() {
+		return setid;
+	}
+
+
+	/**
+	 * @return Bricklink item type
+	 */
+	public String getItemType() {
+		return itemType;
+	}
+
+
+	/**
+	 * @return Bricklink item id
+	 */
+	public String getBlid() {
+		return blid;
+	}
+
+
+	/**
+	 * @return Bricklink color id, {@link #NO_COLOR} if item has no color
+	 */
+	public int getColor() {
+		return color;
+	}
+
+
+	/**
+	 * @return quantity in set
+	 */
+	public int getQty() {
+		return qty;
+	}
+
+
+	/**
+	 * @return true if item is an extra part
+	 */
+	public boolean isExtra() {
+		return extra;
+	}
+
+
+	/**
+	 * @return true if item is an alternate part
+	 */
+	public boolean isAlternate() {
+		return alternate;
+	}
+
+
+	/**
+	 * @return alternate group id, 0 if none
+	 */
+	public int getMatchId() {
+		return matchId;
+	}
+
+
+	/**
+	 * @return true if item is a counterpart
+	 */
+	public boolean isCounterpart() {
+		return counterpart;
+	}
+
+
+
+	/**
+	 * Creates inventory table, with set index and reverse item index<br>
+	 * deletes old one, if any
+	 * @throws SQLException
+	 */
+	public static void createTable() throws SQLException {
+
+		Statement st;
+
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+table+"; " +
+				"CREATE TABLE "+table+" (" +
+				"id INT PRIMARY KEY AUTO_INCREMENT, " +
+				"setid VARCHAR(64)," +
+				"itemtype VARCHAR(4)," +
+				"blid VARCHAR(64)," +
+				"color INT," +
+				"qty INT," +
+				"extra BOOL DEFAULT FALSE," +
+				"alternate BOOL DEFAULT FALSE," +
+				"matchid INT DEFAULT 0," +
+				"counterpart BOOL DEFAULT FALSE" +
+				"); " +
+				"CREATE INDEX "+table+"_set ON "+table+"(setid); " +
+				// reverse index covers "sets with item" queries
+				"CREATE INDEX "+table+"_item ON "+table+"(itemtype,blid,color,setid,qty); " +
+				"COMMIT ");
+	}
+
+
+
+	/**
+	 * Sets line fields in insert statement, parameters 1 to 9
+	 * @param ps statement to fill
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps) throws SQLException {
+
+		ps.setString(1, setid);
+		ps.setString(2, itemType);
+		ps.setString(3, blid);
+		ps.setInt(4, color);
+		ps.setInt(5, qty);
+		ps.setBoolean(6, extra);
+		ps.setBoolean(7, alternate);
+		ps.setInt(8, matchId);
+		ps.setBoolean(9, counterpart);
+	}
+
+
+
+	// query functions
+
+	private static BricklinkInventory getLine(ResultSet rs) throws SQLException {
+
+		BricklinkInventory bi = new BricklinkInventory();
+		bi.id = rs.getInt("id");
+		bi.setid = rs.getString("setid");
+		bi.itemType = rs.getString("itemtype");
+		bi.blid = rs.getString("blid");
+		bi.color = rs.getInt("color");
+		bi.qty = rs.getInt("qty");
+		bi.extra = rs.getBoolean("extra");
+		bi.alternate = rs.getBoolean("alternate");
+		bi.matchId = rs.getInt("matchid");
+		bi.counterpart = rs.getBoolean("counterpart");
+		return bi;
+	}
+
+
+
+	/**
+	 * Retrieve a list of inventory lines, defined by user supplied prepared statement
+	 * @param ps prepared statement to execute
+	 * @return list of inventory lines
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkInventory> getPS(PreparedStatement ps) throws SQLException {
+
+		ArrayList<BricklinkInventory> lines = new ArrayList<BricklinkInventory>();
+		ResultSet rs;
+
+		rs = ps.executeQuery();
+		while (rs.next()) {
+			lines.add(getLine(rs));
+		}
+		return lines;
+	}
+
+
+
+	/**
+	 * Returns inventory of a set
+	 * @param setid Bricklink set id
+	 * @return inventory lines, in import order, empty if set inventory isn't imported
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkInventory> getBySet(String setid) throws SQLException {
+
+		PreparedStatement ps;
+
+		ps = BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM "+table+
+				" WHERE setid=? ORDER BY id");
+		ps.setString(1, setid);
+		return getPS(ps);
+	}
+
+
+
+	/**
+	 * Returns inventory lines with an item, in all sets, using reverse index
+	 * @param itemType Bricklink item type
+	 * @param blid Bricklink item id
+	 * @param color Bricklink color id, or {@link #NO_COLOR} for any color
+	 * @return inventory lines, ordered by color and set
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkInventory> getByItem(String itemType, String blid, int color) throws SQLException {
+
+		PreparedStatement ps;
+
+		ps = BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM "+table+
+				" WHERE itemtype=? AND blid=?"+(color == NO_COLOR ? "" : " AND color=?")+
+				" ORDER BY color,setid");
+		ps.setString(1, itemType);
+		ps.setString(2, blid);
+		if (color != NO_COLOR)
+			ps.setInt(3, color);
+		return getPS(ps);
+	}
+
+
+
+	/**
+	 * Returns inventory lines with a part, in all sets
+	 * @param blid Bricklink part id
+	 * @param color Bricklink color id, or {@link #NO_COLOR} for any color
+	 * @return inventory lines, ordered by color and set
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkInventory> getByPart(String blid, int color) throws SQLException {
+
+		return getByItem("P", blid, color);
+	}
+
+
+
+	/**
+	 * Returns sets that contain an item<br>
+	 * query reads only reverse index
+	 * @param itemType Bricklink item type
+	 * @param blid Bricklink item id
+	 * @param color Bricklink color id, or {@link #NO_COLOR} for any color
+	 * @return set ids, sorted
+	 * @throws SQLException
+	 */
+	public static ArrayList<String> getSetsContaining(String itemType, String blid, int color) throws SQLException {
+
+		PreparedStatement ps;
+		ResultSet rs;
+		ArrayList<String> sets = new ArrayList<String>();
+
+		ps = BricklinkLib.db.prepareStatement("SELECT DISTINCT setid FROM "+table+
+				" WHERE itemtype=? AND blid=?"+(color == NO_COLOR ? "" : " AND color=?")+
+				" ORDER BY setid");
+		ps.setString(1, itemType);
+		ps.setString(2, blid);
+		if (color != NO_COLOR)
+			ps.setInt(3, color);
+		rs = ps.executeQuery();
+		while (rs.next()) {
+			sets.add(rs.getString(1));
+		}
+		return sets;
+	}
+
+
+
+	/**
+	 * Returns sets that contain a part
+	 * @param blid Bricklink part id
+	 * @param color Bricklink color id, or {@link #NO_COLOR} for any color
+	 * @return set ids, sorted
+	 * @throws SQLException
+	 */
+	public static ArrayList<String> getSetsContainingPart(String blid, int color) throws SQLException {
+
+		return getSetsContaining("P", blid, color);
+	}
+
+}
@@ -0,0 +1,754 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.bricklinklib;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Bricklink catalog item other than parts and sets: minifigs, gear, books and instructions<br>
+ * Every item type has its own table, with the same columns. Items are read from
+ * a catalog with any item type by {@link BLItemImporter}, that routes parts and sets
+ * to their own tables.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class BricklinkItem {
+
+	/**
+	 * Item types stored as generic items
+	 */
+	public enum ItemType {
+
+		MINIFIG("M", "blminifigs"),
+		GEAR("G", "blgear"),
+		BOOK("B", "blbooks"),
+		INSTRUCTION("I", "blinstructions");
+
+		private final String code;
+		private final String table;
+
+		private ItemType(String code, String table) {
+			this.code = code;
+			this.table = table;
+		}
+
+		/**
+		 * @return Bricklink item type, as in ITEMTYPE tag
+		 */
+		public String getCode() {
+			return code;
+		}
+
+		/**
+		 * @return table for items of this type
+		 */
+		public String getTable() {
+			return table;
+		}
+
+		/**
+		 * @param code Bricklink item type
+		 * @return item type for code, or null if items of this type aren't stored as generic items
+		 */
+		public static ItemType fromCode(String code) {
+
+			for (ItemType t : values()) {
+				if (t.code.equals(code))
+					return t;
+			}
+			return null;
+		}
+	}
+
+
+	protected int id;
+	/** Bricklink item type, as in ITEMTYPE tag */
+	protected String itemType;
+	/** Category id */
+	protected int catId;
+	/** category name */
+	protected String catname;
+	/** Bricklink item id */
+	protected String blid;
+	/** item name, as defined by Bricklink */
+	protected String name;
+	/** year of release, 0 if unknown */
+	protected int year;
+	/** item weight in grams */
+	protected float weight;
+	/** item size, as defined by Bricklink */
+	protected float x,y,z;
+	/** true if item was deleted by Bricklink */
+	protected boolean deleted;
+	/** last modified time */
+	protected Timestamp lastmod;
+	protected final static String fieldsOrder = "blid,name,catid,category,year,weight,dimx,dimy,dimz,deleted,lastmod";
+	/** fields written by merge, lastmod is set by column default only when an item is inserted */
+	private final static String mergeFields = "blid,name,catid,category,year,weight,dimx,dimy,dimz,deleted,hash";
+	/** number of queued rows that triggers a batch execution */
+	private static int batchSize = 500;
+
+
+
+	public BricklinkItem() {
+		;
+	}
+
+
+
+	/**
+	 * Catalog mapping for all item types<br>
+	 * item type is kept in entity, to route items to their destination
+	 */
+	static class Mapping implements CatalogMapping<BricklinkItem> {
+
+		/** catalog name */
+		static final String NAME = "items";
+		private static final int ITEMTYPE = 0;
+		private static final int ITEMID = 1;
+		private static final int ITEMNAME = 2;
+		private static final int CATEGORY = 3;
+		private static final int ITEMYEAR = 4;
+		private static final int ITEMWEIGHT = 5;
+		private static final int ITEMDIMX = 6;
+		private static final int ITEMDIMY = 7;
+		private static final int ITEMDIMZ = 8;
+		private static final String[] TAGS = {
+			"ITEMTYPE", "ITEMID", "ITEMNAME", "CATEGORY", "ITEMYEAR",
+			"ITEMWEIGHT", "ITEMDIMX", "ITEMDIMY", "ITEMDIMZ"
+		};
+
+		@Override
+		public String getItemType() {
+			return null;
+		}
+
+		@Override
+		public String getRootTag() {
+			return "CATALOG";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "ITEMID";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkItem newItem() {
+
+			BricklinkItem bi = new BricklinkItem();
+			bi.itemType = "";
+			bi.blid = "";
+			bi.name = "";
+			bi.deleted = false;
+			return bi;
+		}
+
+		@Override
+		public void setField(BricklinkItem bi, int tag, char[] text, int start, int len) {
+
+			switch (tag) {
+			case ITEMTYPE:
+				bi.itemType = CharParser.getTrimmed(text, start, len);
+				break;
+			case ITEMID:
+				bi.blid = CharParser.getTrimmed(text, start, len);
+				break;
+			case ITEMNAME:
+				bi.name = CharParser.getTrimmed(text, start, len);
+				break;
+			case CATEGORY:
+				bi.catId = CharParser.parseInt(text, start, len);
+				break;
+			case ITEMYEAR:
+				bi.year = CharParser.parseInt(text, start, len);
+				break;
+			case ITEMWEIGHT:
+				bi.weight = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMX:
+				bi.x = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMY:
+				bi.y = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMZ:
+				bi.z = CharParser.parseFloat(text, start, len);
+				break;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Writes imported items of a type as an update of its table<br>
+	 * items are merged by Bricklink id, items not in import are marked as deleted.<br>
+	 * Update is committed in checkpoints, and an interrupted update can resume
+	 */
+	static class Sink implements SharedTransactionSink<BricklinkItem> {
+
+		private final ItemType type;
+		private ItemIndex index = null;
+		private PreparedStatement mergePS = null;
+		private int pending = 0;
+		private int unchanged = 0;
+		private int resumed = 0;
+		private int written = 0;
+		private int deleted = 0;
+		private ImportStats stats = null;
+
+		/**
+		 * @param type item type written by this sink
+		 */
+		Sink(ItemType type) {
+			this.type = type;
+		}
+
+		@Override
+		public void begin() throws SQLException {
+
+			long t;
+
+			stats = ImportStats.current(Mapping.NAME);
+			mergePS = BricklinkLib.db.prepareStatement("MERGE INTO "+type.table+" " +
+					"("+mergeFields+") KEY(blid) VALUES " +
+					"(?,?,?,?,?,?,?,?,?,?,?)");
+			t = System.nanoTime();
+			BricklinkLib.db.deleteFTS(type.table.toUpperCase());
+			BricklinkLib.db.autocommitDisable();
+			stats.addFts(System.nanoTime() - t);
+			index = loadIndex(type);
+		}
+
+		private void merge(BricklinkItem bi) throws SQLException {
+
+			bi.setParams(mergePS, bi.catname);
+			mergePS.addBatch();
+			pending++;
+			if (pending >= batchSize) {
+				mergePS.executeBatch();
+				pending = 0;
+			}
+		}
+
+		private void flush() throws SQLException {
+
+			if (pending > 0) {
+				mergePS.executeBatch();
+				pending = 0;
+			}
+		}
+
+		@Override
+		public void write(List<BricklinkItem> items) throws SQLException {
+
+			for (BricklinkItem bi : items) {
+				// write only new or changed items, category name is looked up once
+				bi.catname = BricklinkCategory.getNameById(bi.catId);
+				switch (index.seenState(bi.blid, bi.contentHash(bi.catname))) {
+				case ItemIndex.INSERTED:
+					merge(bi);
+					stats.addInserts(1);
+					break;
+				case ItemIndex.UPDATED:
+					merge(bi);
+					stats.addUpdates(1);
+					break;
+				default:
+					unchanged++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void checkpoint() throws SQLException {
+
+			flush();
+			BricklinkLib.db.commit();
+		}
+
+		@Override
+		public void skip(List<BricklinkItem> items) throws SQLException {
+
+			for (BricklinkItem bi : items) {
+				// committed by interrupted import, write only if row is missing
+				if (index.markSeen(bi.blid) == ItemIndex.NOT_FOUND) {
+					bi.catname = BricklinkCategory.getNameById(bi.catId);
+					merge(bi);
+					stats.addInserts(1);
+				}
+				else {
+					resumed++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+
+			if (count == 0) {
+				// no items in update?!?
+				abort();
+				return;
+			}
+			finish(count);
+			BricklinkLib.db.commit();
+			BricklinkLib.db.autocommitEnable();
+			afterCommit();
+		}
+
+		@Override
+		public void finish(int count) throws SQLException {
+
+			flush();
+			deleted = markDeleted(type, index);
+			stats.addDeleted(deleted);
+			written = count;
+		}
+
+		@Override
+		public void afterCommit() throws SQLException {
+
+			long t;
+
+			t = System.nanoTime();
+			createFTS(type);
+			stats.addCommitFts(System.nanoTime() - t);
+			Logger.getGlobal().log(Level.INFO,"[BricklinkItem] "+(written-unchanged-resumed)+" "+type.table+" written, "+
+					unchanged+" unchanged, "+resumed+" resumed, "+deleted+" deleted");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+
+			if (mergePS != null)
+				mergePS.clearBatch();
+			pending = 0;
+			BricklinkLib.db.rollback();
+			BricklinkLib.db.autocommitEnable();
+			// restore full text index
+			createFTS(type);
+		}
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "BricklinkItem [id=" + id + ", type=" + itemType + ", category(ID)=" + catname+"("+catId + "), blid="
+				+ blid + ", name=" + name + ", year=" + year + ", weight=" + weight + ", x=" + x
+				+ ", y=" + y + ", z=" + z + ", deleted="+deleted+", lastmod="+lastmod+"]";
+	}
+
+
+	/*
+	 * get and set
+	 */
+
+
+	/**
+	 * @return Bricklink item type
+	 */
+	public String getItemType() {
+		return itemType;
+	}
+
+
+	/**
+	 * @return the catId
+	 */
+	public int getCatId() {
+		return catId;
+	}
+
+
+	/**
+	 * @return the catname
+	 */
+	public String getCatname() {
+		return catname;
+	}
+
+
+	/**
+	 * @return the blid
+	 */
+	public String getBlid() {
+		return blid;
+	}
+
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+
+	/**
+	 * @return year of release, 0 if unknown
+	 */
+	public int getYear() {
+		return year;
+	}
+
+
+	/**
+	 * @return weight in grams
+	 */
+	public float getWeight() {
+		return weight;
+	}
+
+
+	/**
+	 * @return the deleted
+	 */
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+
+	/**
+	 * @return the lastmod
+	 */
+	public Timestamp getLastmod() {
+		return lastmod;
+	}
+
+
+
+	/**
+	 * @return a part with same Bricklink id, name, category, weight and size
+	 */
+	BricklinkPart toPart() {
+
+		BricklinkPart bp = new BricklinkPart();
+		bp.blid = blid;
+		bp.name = name;
+		bp.catId = catId;
+		bp.weight = weight;
+		bp.x = x;
+		bp.y = y;
+		bp.z = z;
+		bp.deleted = false;
+		return bp;
+	}
+
+
+
+	/**
+	 * @return a set with same Bricklink id, name, category and year
+	 */
+	BricklinkSet toSet() {
+
+		BricklinkSet bs = new BricklinkSet();
+		bs.setid = blid;
+		bs.name = name;
+		bs.catid = catId;
+		bs.year = year;
+		return bs;
+	}
+
+
+
+	/**
+	 * Creates tables for all item types, with full text indexes<br>
+	 * deletes old ones, if any
+	 * @throws SQLException
+	 */
+	public static void createTables() throws SQLException {
+
+		for (ItemType t : ItemType.values()) {
+			createTable(t);
+			createFTS(t);
+		}
+	}
+
+
+
+	/**
+	 * Creates table for an item type<br>
+	 * remove first full text index, if any
+	 * @param type item type
+	 * @throws SQLException
+	 */
+	public static void createTable(ItemType type) throws SQLException {
+
+		Statement st;
+
+		BricklinkLib.db.deleteFTS(type.table.toUpperCase());
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+type.table+"; " +
+				"CREATE TABLE "+type.table+" (" +
+				"id INT PRIMARY KEY AUTO_INCREMENT, " +
+				"blid VARCHAR(64) UNIQUE," +
+				"name VARCHAR(255)," +
+				"catid INT," +
+				"category VARCHAR(64)," +
+				"year INT," +
+				"weight REAL," +
+				"dimx REAL," +
+				"dimy REAL," +
+				"dimz REAL," +
+				"deleted BOOL DEFAULT FALSE," +
+				"lastmod TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+				"hash BIGINT" +
+				"); COMMIT ");
+		ImportState.clear(Mapping.NAME);
+	}
+
+
+
+	/**
+	 * Creates full text search index for an item type<br> using Bricklink id, name and category<br>
+	 * deletes any old index
+	 * @param type item type
+	 * @throws SQLException
+	 */
+	public static void createFTS(ItemType type) throws SQLException {
+
+		BricklinkLib.db.createFTS(type.table.toUpperCase(), "BLID,NAME,CATEGORY");
+	}
+
+
+
+	/**
+	 * Sets item fields in merge statement, parameters 1 to 11
+	 * @param ps statement to fill
+	 * @param cat name of item category
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps, String cat) throws SQLException {
+
+		ps.setString(1, blid);
+		ps.setString(2, name);
+		ps.setInt(3, catId);
+		ps.setString(4, cat);
+		ps.setInt(5, year);
+		ps.setFloat(6, weight);
+		ps.setFloat(7, x);
+		ps.setFloat(8, y);
+		ps.setFloat(9, z);
+		ps.setBoolean(10, deleted);
+		ps.setLong(11, contentHash(cat));
+	}
+
+
+
+	/**
+	 * Computes hash of item content, as stored in item table
+	 * @param cat category name
+	 * @return content hash
+	 */
+	private long contentHash(String cat) {
+
+		long h = ContentHash.INIT;
+		h = ContentHash.add(h, blid);
+		h = ContentHash.add(h, name);
+		h = ContentHash.add(h, catId);
+		h = ContentHash.add(h, cat);
+		h = ContentHash.add(h, year);
+		h = ContentHash.add(h, weight);
+		h = ContentHash.add(h, x);
+		h = ContentHash.add(h, y);
+		h = ContentHash.add(h, z);
+		h = ContentHash.add(h, deleted);
+		return h;
+	}
+
+
+
+	/**
+	 * @return hash of item content, to detect changes since last import
+	 * @throws SQLException
+	 */
+	public long contentHash() throws SQLException {
+
+		return contentHash(BricklinkCategory.getNameById(catId));
+	}
+
+
+
+	/**
+	 * Loads Bricklink id and row id for all items of a type in a single table scan
+	 * @param type item type
+	 * @return index of all items in table
+	 * @throws SQLException
+	 */
+	public static ItemIndex loadIndex(ItemType type) throws SQLException {
+
+		Statement st;
+		ResultSet rs;
+		ItemIndex index;
+
+		st = BricklinkLib.db.createStatement();
+		rs = st.executeQuery("SELECT COUNT(*) FROM "+type.table);
+		rs.next();
+		index = new ItemIndex(rs.getInt(1));
+		rs = st.executeQuery("SELECT id,blid,deleted,hash FROM "+type.table);
+		while (rs.next()) {
+			index.put(rs.getString(2), rs.getInt(1), rs.getBoolean(3), rs.getLong(4));
+		}
+		return index;
+	}
+
+
+
+	/**
+	 * Marks as deleted all items not seen during current update
+	 * @param type item type
+	 * @param index item index used in update
+	 * @return number of items marked as deleted
+	 * @throws SQLException
+	 */
+	public static int markDeleted(ItemType type, ItemIndex index) throws SQLException {
+
+		PreparedStatement ps;
+		int[] unseen = index.getUnseen();
+
+		if (unseen.length == 0)
+			return 0;
+		// batch of updates by primary key, as for parts and sets
+		ps = BricklinkLib.db.prepareStatement("UPDATE "+type.table+" SET deleted=TRUE WHERE id=?");
+		for (int i = 0; i < unseen.length; i++) {
+			ps.setInt(1, unseen[i]);
+			ps.addBatch();
+			if ((i + 1) % batchSize == 0)
+				ps.executeBatch();
+		}
+		ps.executeBatch();
+		return unseen.length;
+	}
+
+
+
+	// query functions
+
+	private static BricklinkItem getItem(ItemType type, ResultSet rs) throws SQLException {
+
+		BricklinkItem bi = new BricklinkItem();
+		bi.id = rs.getInt("id");
+		bi.itemType = type.code;
+		bi.blid = rs.getString("blid");
+		bi.name = rs.getString("name");
+		bi.catId = rs.getInt("catid");
+		bi.catname = rs.getString("category");
+		bi.year = rs.getInt("year");
+		bi.weight = rs.getFloat("weight");
+		bi.x = rs.getFloat("dimx");
+		bi.y = rs.getFloat("dimy");
+		bi.z = rs.getFloat("dimz");
+		bi.deleted = rs.getBoolean("deleted");
+		bi.lastmod = rs.getTimestamp("lastmod");
+		return bi;
+	}
+
+
+
+	/**
+	 * Returns an item by Bricklink id
+	 * @param type item type
+	 * @param blid Bricklink id
+	 * @return item, or null if not found
+	 * @throws SQLException
+	 */
+	public static BricklinkItem getById(ItemType type, String blid) throws SQLException {
+
+		PreparedStatement ps;
+
+		ps = BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM "+type.table+" where blid=?");
+		ps.setString(1, blid);
+		ArrayList<BricklinkItem> items = getPS(type, ps);
+		if (items.size() > 1)
+			throw new SQLException("[BricklinkItem] Duplicated item definition in '"+type.table+"' table: "+blid);
+		if (items.size() == 0)
+			return null;
+		return items.get(0);
+	}
+
+
+
+	/**
+	 * Retrieve a list of items, defined by user supplied prepared statement
+	 * @param type item type, table queried by statement
+	 * @param ps prepared statement to execute
+	 * @return list of items
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkItem> getPS(ItemType type, PreparedStatement ps) throws SQLException {
+
+		ArrayList<BricklinkItem> items = new ArrayList<BricklinkItem>();
+		ResultSet rs;
+
+		rs = ps.executeQuery();
+		while (rs.next()) {
+			items.add(getItem(type, rs));
+		}
+		return items;
+	}
+
+
+
+	/**
+	 * Retrieve items by full text search query, optionally with "refine search" filter<br>
+	 * if <em>filter</em> is null, returns all results.
+	 * @param type item type
+	 * @param filterExpr full text search filter (syntax is H2 database and Lucene http://h2database.com/html/tutorial.html#fulltext)
+	 * @param filter WHERE clause to refine search
+	 * @return list of items
+	 * @throws SQLException
+	 */
+	public static ArrayList<BricklinkItem> getFTS(ItemType type, String filterExpr, String filter) throws SQLException {
+
+		ArrayList<BricklinkItem> items = new ArrayList<BricklinkItem>();
+		PreparedStatement ps;
+
+		if (filterExpr != null) {
+			ps = BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM FTL_SEARCH_DATA(?,0,0) f " +
+					"LEFT JOIN "+type.table+" b on (f.keys[0]=b.id) WHERE f.table='"+type.table.toUpperCase()+"'" +
+					(filter == null ? "" : " AND "+filter));
+			ps.setString(1, filterExpr);
+			items = getPS(type, ps);
+		}
+		return items;
+	}
+
+}
@@ -31,7 +31,7 @@ public class BricklinkLib {
 	
 	protected static DBConnector db;
 	private static final String DBVAR = "MPBLVERSION";
-	private static final int DBVERSION = 1;
+	private static final int DBVERSION = 7;
 	
 	
 	private BricklinkLib() {
@@ -46,10 +46,57 @@ public class BricklinkLib {
 		st = db.createStatement();
 		st.execute("ALTER TABLE "+BricklinkSet.table+" ADD COLUMN (weight REAL, dimx REAL, dimy REAL, dimz REAL)");
 		st.execute("ALTER TABLE "+BricklinkColor.table+" ADD COLUMN (inpart INT, inset INT, wanted INT, sell INT)");
-		db.setDbVersion(DBVAR, DBVERSION);
 	}
 	
 	
+	private static void upgradeFrom1() throws SQLException {
+		
+		// deduplicate parts and make Bricklink id unique
+		BricklinkPart.upgradeUniqueBlid();
+	}
+	
+	
+	private static void upgradeFrom2() throws SQLException {
+		
+		Statement st;
+		
+		// content hash for delta import, NULL hash forces a rewrite on next import
+		st = db.createStatement();
+		st.execute("ALTER TABLE "+BricklinkPart.table+" ADD COLUMN hash BIGINT");
+		st.execute("ALTER TABLE "+BricklinkSet.table+" ADD COLUMN hash BIGINT");
+	}
+	
+	
+	private static void upgradeFrom3() throws SQLException {
+		
+		// incremental set update
+		BricklinkSet.upgradeIncremental();
+	}
+	
+	
+	private static void upgradeFrom4() throws SQLException {
+		
+		// resumable imports
+		ImportState.upgradeCheckpoint();
+	}
+	
+	
+	private static void upgradeFrom5() throws SQLException {
+		
+		// minifigs, gear, books and instructions
+		BricklinkItem.createTables();
+	}
+	
+	
+	private static void upgradeFrom6() throws SQLException {
+		
+		// set inventories
+		BricklinkInventory.createTable();
+	}
+	
+	
+	// upgrades are applied in sequence, from database version up
+	@SuppressWarnings("fallthrough")
 	public static void Init(DBConnector dbc) throws SQLException {
 		
 		if (dbc == null)
@@ -60,9 +107,29 @@ public class BricklinkLib {
 			switch (db.getDbVersion(DBVAR)) {
 			case -1:
 				upgradeFromMinus1();
+				// falls through
+			case 1:
+				upgradeFrom1();
+				// falls through
+			case 2:
+				upgradeFrom2();
+				// falls through
+			case 3:
+				upgradeFrom3();
+				// falls through
+			case 4:
+				upgradeFrom4();
+				// falls through
+			case 5:
+				upgradeFrom5();
+				// falls through
+			case 6:
+				upgradeFrom6();
 				break;
 			}
+			db.setDbVersion(DBVAR, DBVERSION);
 		}
+		ImportState.init();
 		BricklinkPart.init();
 		BricklinkSet.init();
 		BricklinkColor.init();
@@ -20,12 +20,19 @@
 
 package bricksnspace.bricklinklib;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Generic Bricklink part
@@ -54,9 +61,24 @@ public class BricklinkPart {
 	protected Timestamp lastmod;
 	/** table name in database */
 	public static final String table = "blparts";
+	/** shadow table, loaded by import and swapped with part table when complete */
+	private static final String nextTable = table + "_next";
+	/** part table replaced by swap, dropped in the same statement */
+	private static final String oldTable = table + "_old";
 	private static PreparedStatement insertPS = null;
 	private static PreparedStatement updatePS = null;
+	private static PreparedStatement mergePS = null;
+	/** write lock taken by {@link #beginUpdate()} for a caller outside importers */
+	private static boolean updateLocked = false;
+	/** rows queued in insert/update/merge batches, not yet sent to database */
+	private static int pendingInsert = 0;
+	private static int pendingUpdate = 0;
+	private static int pendingMerge = 0;
+	/** number of queued rows that triggers a batch execution */
+	private static int batchSize = 500;
 	protected final static String fieldsOrder = "blid,name,catid,category,weight,dimx,dimy,dimz,deleted,lastmod";
+	/** fields written by merge, lastmod is set by column default only when a part is inserted */
+	private final static String mergeFields = "blid,name,catid,category,weight,dimx,dimy,dimz,deleted,hash";
 	
 	
 	
@@ -65,6 +87,642 @@ public class BricklinkPart {
 	}
 
 	
+	
+	/**
+	 * Part catalog mapping, only items of type "P"
+	 */
+	static class Mapping implements CatalogMapping<BricklinkPart> {
+		
+		/** catalog name */
+		static final String NAME = "parts";
+		private static final int ITEMID = 0;
+		private static final int ITEMNAME = 1;
+		private static final int CATEGORY = 2;
+		private static final int ITEMWEIGHT = 3;
+		private static final int ITEMDIMX = 4;
+		private static final int ITEMDIMY = 5;
+		private static final int ITEMDIMZ = 6;
+		private static final String[] TAGS = {
+			"ITEMID", "ITEMNAME", "CATEGORY", "ITEMWEIGHT", "ITEMDIMX", "ITEMDIMY", "ITEMDIMZ"
+		};
+		
+		@Override
+		public String getItemType() {
+			return "P";
+		}
+
+		@Override
+		public String getRootTag() {
+			return "CATALOG";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "ITEMID";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkPart newItem() {
+			
+			BricklinkPart bp = new BricklinkPart();
+			bp.blid = "";
+			bp.name = "";
+			bp.deleted = false;
+			return bp;
+		}
+
+		@Override
+		public void setField(BricklinkPart bp, int tag, char[] text, int start, int len) {
+			
+			switch (tag) {
+			case ITEMID:
+				bp.blid = CharParser.getTrimmed(text, start, len);
+				break;
+			case ITEMNAME:
+				bp.name = CharParser.getTrimmed(text, start, len);
+				break;
+			case CATEGORY:
+				bp.catId = CharParser.parseInt(text, start, len);
+				break;
+			case ITEMWEIGHT:
+				bp.weight = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMX:
+				bp.x = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMY:
+				bp.y = CharParser.parseFloat(text, start, len);
+				break;
+			case ITEMDIMZ:
+				bp.z = CharParser.parseFloat(text, start, len);
+				break;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes imported parts as an update of part table<br>
+	 * parts are merged by Bricklink id, parts not in import are marked as deleted.<br>
+ * Update is committed in checkpoints, and an interrupted update can resume
+	 */
+	static class Sink implements SharedTransactionSink<BricklinkPart> {
+		
+		private ItemIndex index = null;
+		private int unchanged = 0;
+		private int resumed = 0;
+		private int written = 0;
+		private int deleted = 0;
+		private ImportStats stats = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			long t;
+			
+			stats = ImportStats.current(Mapping.NAME);
+			t = System.nanoTime();
+			beginUpdate();
+			stats.addFts(System.nanoTime() - t);
+			index = loadIndex();
+		}
+
+		@Override
+		public void write(List<BricklinkPart> items) throws SQLException {
+			
+			for (BricklinkPart bp : items) {
+				// write only new or changed parts, category name is looked up once
+				bp.catname = BricklinkCategory.getNameById(bp.catId);
+				switch (index.seenState(bp.blid, bp.contentHash(bp.catname))) {
+				case ItemIndex.INSERTED:
+					bp.addMergeBatch(bp.catname);
+					stats.addInserts(1);
+					break;
+				case ItemIndex.UPDATED:
+					bp.addMergeBatch(bp.catname);
+					stats.addUpdates(1);
+					break;
+				default:
+					unchanged++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void checkpoint() throws SQLException {
+			
+			flushBatch();
+			BricklinkLib.db.commit();
+		}
+
+		@Override
+		public void skip(List<BricklinkPart> items) throws SQLException {
+			
+			for (BricklinkPart bp : items) {
+				// committed by interrupted import, write only if row is missing
+				if (index.markSeen(bp.blid) == ItemIndex.NOT_FOUND) {
+					bp.addMergeBatch();
+					stats.addInserts(1);
+				}
+				else {
+					resumed++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			if (count == 0) {
+				// no parts in update?!?
+				abortUpdate();
+				return;
+			}
+			finish(count);
+			endUpdate();
+			afterCommit();
+		}
+
+		@Override
+		public void finish(int count) throws SQLException {
+			
+			flushBatch();
+			deleted = markDeleted(index);
+			stats.addDeleted(deleted);
+			written = count;
+		}
+
+		@Override
+		public void afterCommit() throws SQLException {
+			
+			long t = System.nanoTime();
+			createFTS();
+			stats.addCommitFts(System.nanoTime() - t);
+			Logger.getGlobal().log(Level.INFO,"[BricklinkPart] "+(written-unchanged-resumed)+" parts written, "+
+					unchanged+" unchanged, "+resumed+" resumed, "+deleted+" deleted");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			abortUpdate();
+		}
+	}
+
+	
+	
+	/**
+	 * Rebuilds part table from import with a bulk load<br>
+	 * for first install or recovery: a shadow table is loaded, gets unique constraint 
+	 * and replaces part table, full text index is rebuilt once, after swap. Existing rows 
+	 * and deleted parts are lost. If Bricklink id is repeated in import, only first part is kept.
+	 */
+	static class BulkSink implements CatalogSink<BricklinkPart> {
+		
+		private BulkLoader bulk = null;
+		private HashSet<String> seen = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			bulk = new BulkLoader(mergeFields);
+			seen = new HashSet<String>();
+		}
+
+		@Override
+		public void write(List<BricklinkPart> items) throws SQLException {
+			
+			for (BricklinkPart bp : items) {
+				if (seen.add(bp.blid))
+					bp.addBulkRow(bulk);
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			long start;
+			int loaded;
+			ImportStats stats = ImportStats.current(Mapping.NAME);
+			
+			try {
+				if (count == 0) {
+					// no parts in import?!? keep current table
+					return;
+				}
+				start = System.currentTimeMillis();
+				createTable(nextTable, false);
+				loaded = bulk.load(nextTable);
+				addKeys(nextTable);
+				stats.addCommitFts(swapShadow());
+				stats.addInserts(loaded);
+				Logger.getGlobal().log(Level.INFO,"[BricklinkPart] "+loaded+" parts bulk loaded in "+
+						(System.currentTimeMillis()-start)+" ms");
+			} finally {
+				bulk.close();
+			}
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			if (bulk != null)
+				bulk.close();
+			dropShadow();
+		}
+	}
+	
+	
+	
+	/**
+	 * Updates a shadow copy of part table and swaps it in when import is complete<br>
+	 * part table and its full text index are never locked or changed during import, 
+	 * readers see previous parts until swap. Full text index is rebuilt after swap, and 
+	 * finds no parts until done. Parts are merged by Bricklink id and keep 
+	 * their row id, parts not in import are marked as deleted.<br>
+	 * Shadow table isn't a transaction: an interrupted import starts again from scratch.
+	 */
+	static class ShadowSink implements CatalogSink<BricklinkPart> {
+		
+		private ItemIndex index = null;
+		private PreparedStatement ps = null;
+		private int pending = 0;
+		private int unchanged = 0;
+		private ImportStats stats = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			stats = ImportStats.current(Mapping.NAME);
+			createTable(nextTable, true);
+			copyToShadow();
+			index = loadIndex();
+			ps = BricklinkLib.db.prepareStatement("MERGE INTO "+nextTable+" " +
+					"("+mergeFields+") KEY(blid) VALUES " +
+					"(?,?,?,?,?,?,?,?,?,?)");
+		}
+
+		@Override
+		public void write(List<BricklinkPart> items) throws SQLException {
+			
+			for (BricklinkPart bp : items) {
+				// write only new or changed parts, category name is looked up once
+				bp.catname = BricklinkCategory.getNameById(bp.catId);
+				switch (index.seenState(bp.blid, bp.contentHash(bp.catname))) {
+				case ItemIndex.INSERTED:
+					stats.addInserts(1);
+					break;
+				case ItemIndex.UPDATED:
+					stats.addUpdates(1);
+					break;
+				default:
+					unchanged++;
+					stats.addUnchanged(1);
+					continue;
+				}
+				bp.setParams(ps, bp.catname);
+				ps.addBatch();
+				pending++;
+				if (pending >= batchSize) {
+					ps.executeBatch();
+					pending = 0;
+				}
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			if (count == 0) {
+				// no parts in update?!? keep current table
+				dropShadow();
+				return;
+			}
+			if (pending > 0)
+				ps.executeBatch();
+			int deleted = markDeleted(nextTable, index);
+			stats.addDeleted(deleted);
+			stats.addCommitFts(swapShadow());
+			Logger.getGlobal().log(Level.INFO,"[BricklinkPart] "+(count-unchanged)+" parts written, "+
+					unchanged+" unchanged, "+deleted+" deleted, shadow table swapped");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			if (ps != null)
+				ps.clearBatch();
+			dropShadow();
+		}
+	}
+	
+	
+	/**
+	 * Writes imported parts with several writer threads, each with its own connection<br>
+	 * parts are partitioned by hash of Bricklink id among writers. Change detection runs 
+	 * in import thread, writers get only new or changed parts and merge them directly in 
+	 * part table, in a transaction that isn't seen by readers until import is complete.<br>
+	 * When all writers completed without errors, unseen parts are marked as deleted on 
+	 * library connection, then all transactions are committed in two phases: every 
+	 * connection prepares its commit, and only when all are prepared they are committed. 
+	 * Part table gets all changes of import or none. Full text index is dropped for 
+	 * the whole import, because its triggers can't run on writer connections, and 
+	 * rebuilt at end. There are no checkpoints and an interrupted import starts again 
+	 * from scratch.
+	 */
+	static class ParallelSink implements CatalogSink<BricklinkPart> {
+		
+		/** end of parts for a writer */
+		private static final List<BricklinkPart> END = new ArrayList<BricklinkPart>(0);
+		/** batches queued for every writer */
+		private static final int QUEUE = 4;
+		
+		private final ConnectionProvider provider;
+		private final Writer[] writers;
+		private ItemIndex index = null;
+		private int unchanged = 0;
+		private boolean ftsDropped = false;
+		private ImportStats stats = null;
+		
+		
+		/**
+		 * A writer thread, with its own connection and merge statement
+		 */
+		private static class Writer implements Runnable {
+			
+			private final Connection conn;
+			private final PreparedStatement ps;
+			private final ArrayBlockingQueue<List<BricklinkPart>> queue = 
+					new ArrayBlockingQueue<List<BricklinkPart>>(QUEUE);
+			private final Thread thread;
+			private final String name;
+			private ArrayList<BricklinkPart> batch = new ArrayList<BricklinkPart>();
+			private volatile SQLException failed = null;
+			
+			Writer(Connection conn, int n) throws SQLException {
+				
+				this.conn = conn;
+				conn.setAutoCommit(false);
+				ps = conn.prepareStatement("MERGE INTO "+table+" " +
+						"("+mergeFields+") KEY(blid) VALUES " +
+						"(?,?,?,?,?,?,?,?,?,?)");
+				name = "BLPARTS_WRITER_"+n;
+				thread = new Thread(this, "BricklinkPart writer "+n);
+				thread.setDaemon(true);
+			}
+			
+			@Override
+			public void run() {
+				
+				List<BricklinkPart> parts;
+				int pending = 0;
+				
+				try {
+					while ((parts = queue.take()) != END) {
+						for (BricklinkPart bp : parts) {
+							// category name resolved by importer thread
+							bp.setParams(ps, bp.catname);
+							ps.addBatch();
+							pending++;
+							if (pending >= batchSize) {
+								ps.executeBatch();
+								pending = 0;
+							}
+						}
+					}
+					if (pending > 0)
+						ps.executeBatch();
+				} catch (SQLException e) {
+					failed = e;
+				} catch (InterruptedException e) {
+					failed = new SQLException("[BricklinkPart] writer interrupted", e);
+				}
+			}
+			
+			/**
+			 * Hands queued parts to writer thread
+			 * @param parts parts to write, or {@link ParallelSink#END}
+			 * @throws SQLException if writer failed or import thread is interrupted
+			 */
+			void send(List<BricklinkPart> parts) throws SQLException {
+				
+				try {
+					while (!queue.offer(parts, 100, TimeUnit.MILLISECONDS)) {
+						if (failed != null || !thread.isAlive())
+							break;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("[BricklinkPart] import interrupted", e);
+				}
+				if (failed != null)
+					throw failed;
+			}
+			
+			/**
+			 * First phase of commit: written parts survive a crash, but aren't visible yet
+			 * @throws SQLException
+			 */
+			void prepare() throws SQLException {
+				
+				Statement st;
+				
+				st = conn.createStatement();
+				st.execute("PREPARE COMMIT "+name);
+				st.close();
+			}
+			
+			void close() {
+				
+				thread.interrupt();
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				try {
+					conn.rollback();
+				} catch (SQLException e) {
+					;
+				}
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					;
+				}
+			}
+		}
+		
+		
+		/**
+		 * @param provider source of writer connections
+		 * @param writers number of writer threads and connections
+		 */
+		ParallelSink(ConnectionProvider provider, int writers) {
+			
+			if (writers < 1)
+				throw new IllegalArgumentException("[BricklinkPart] at least one writer is needed");
+			this.provider = provider;
+			this.writers = new Writer[writers];
+		}
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			long t;
+			
+			stats = ImportStats.current(Mapping.NAME);
+			index = loadIndex();
+			try {
+				for (int i = 0; i < writers.length; i++) {
+					writers[i] = new Writer(provider.getConnection(), i);
+				}
+			} catch (SQLException e) {
+				closeWriters();
+				throw e;
+			}
+			// full text triggers update index on library connection only
+			t = System.nanoTime();
+			BricklinkLib.db.deleteFTS(table.toUpperCase());
+			ftsDropped = true;
+			stats.addFts(System.nanoTime() - t);
+			for (Writer w : writers) {
+				w.thread.start();
+			}
+		}
+
+		@Override
+		public void write(List<BricklinkPart> items) throws SQLException {
+			
+			Writer w;
+			
+			for (BricklinkPart bp : items) {
+				// write only new or changed parts, category name is looked up once
+				bp.catname = BricklinkCategory.getNameById(bp.catId);
+				switch (index.seenState(bp.blid, bp.contentHash(bp.catname))) {
+				case ItemIndex.INSERTED:
+					stats.addInserts(1);
+					break;
+				case ItemIndex.UPDATED:
+					stats.addUpdates(1);
+					break;
+				default:
+					unchanged++;
+					stats.addUnchanged(1);
+					continue;
+				}
+				w = writers[(bp.blid.hashCode() & 0x7fffffff) % writers.length];
+				w.batch.add(bp);
+			}
+			for (Writer wr : writers) {
+				if (!wr.batch.isEmpty()) {
+					wr.send(wr.batch);
+					wr.batch = new ArrayList<BricklinkPart>();
+				}
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			long t;
+			int deleted;
+			Statement st;
+			int committed = 0;
+			SQLException failed = null;
+			
+			if (count == 0) {
+				// no parts in update?!?
+				abort();
+				return;
+			}
+			try {
+				for (Writer w : writers) {
+					w.send(END);
+				}
+				for (Writer w : writers) {
+					w.thread.join();
+					if (w.failed != null)
+						throw w.failed;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("[BricklinkPart] import interrupted", e);
+			}
+			// all writers succeeded, unseen parts aren't touched by writers
+			BricklinkLib.db.autocommitDisable();
+			deleted = markDeleted(index);
+			for (Writer w : writers) {
+				w.prepare();
+			}
+			st = BricklinkLib.db.createStatement();
+			st.execute("PREPARE COMMIT BLPARTS_IMPORT");
+			// every connection is prepared: commit all, even if one fails
+			try {
+				BricklinkLib.db.commit();
+				committed++;
+			} catch (SQLException e) {
+				failed = e;
+			}
+			for (Writer w : writers) {
+				try {
+					w.conn.commit();
+					committed++;
+				} catch (SQLException e) {
+					if (failed == null)
+						failed = e;
+				}
+			}
+			if (failed != null) {
+				if (committed > 0)
+					Logger.getGlobal().log(Level.SEVERE,"[BricklinkPart] only "+committed+" of "+
+							(writers.length+1)+" transactions committed, part table is incomplete", failed);
+				throw failed;
+			}
+			BricklinkLib.db.autocommitEnable();
+			closeWriters();
+			stats.addDeleted(deleted);
+			t = System.nanoTime();
+			createFTS();
+			ftsDropped = false;
+			stats.addCommitFts(System.nanoTime() - t);
+			Logger.getGlobal().log(Level.INFO,"[BricklinkPart] "+(count-unchanged)+" parts written by "+
+					writers.length+" writers, "+unchanged+" unchanged, "+deleted+" deleted");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			closeWriters();
+			BricklinkLib.db.rollback();
+			BricklinkLib.db.autocommitEnable();
+			if (ftsDropped) {
+				// restore full text index
+				createFTS();
+				ftsDropped = false;
+			}
+		}
+		
+		private void closeWriters() {
+			
+			for (int i = 0; i < writers.length; i++) {
+				if (writers[i] != null) {
+					writers[i].close();
+					writers[i] = null;
+				}
+			}
+		}
+	}
+	
+	
 	@Override
 	public String toString() {
 		return "BrickLinkPart [id=" + id + ", category(ID)=" + catname+"("+catId + "), blid="
@@ -133,13 +791,10 @@ public class BricklinkPart {
 	 */
 	public static void init() throws SQLException {
 
-		// creates index if not exists
-		Statement st = BricklinkLib.db.createStatement();
-		st.executeUpdate("CREATE INDEX IF NOT EXISTS blp_blid ON "+BricklinkPart.table+"(blid)");		
 		// prepared statements
 		insertPS = BricklinkLib.db.prepareStatement("INSERT INTO "+table+" " +
-				"("+fieldsOrder+") VALUES " +
-				"(?,?,?,?,?,?,?,?,?,NOW())" +
+				"("+fieldsOrder+",hash) VALUES " +
+				"(?,?,?,?,?,?,?,?,?,NOW(),?)" +
 				";",Statement.RETURN_GENERATED_KEYS);
 		// no update time, part is "lastmod" when inserted first time
 		updatePS = BricklinkLib.db.prepareStatement("UPDATE "+table+" SET " +
@@ -151,13 +806,38 @@ public class BricklinkPart {
 				"dimx=?," +
 				"dimy=?," +
 				"dimz=?," +
-				"deleted=?" +
+				"deleted=?," +
+				"hash=? " +
 				"WHERE id=? " +
 				";");
+		// insert or update using unique Bricklink id
+		mergePS = BricklinkLib.db.prepareStatement("MERGE INTO "+table+" " +
+				"("+mergeFields+") KEY(blid) VALUES " +
+				"(?,?,?,?,?,?,?,?,?,?)" +
+				";");
 
 	}
 	
 
+	/**
+	 * Upgrade parts table to unique Bricklink id<br>
+	 * removes duplicate parts, keeping the oldest row, replaces old non-unique index
+	 * with an unique constraint and adds default for last modified time
+	 * @throws SQLException
+	 */
+	protected static void upgradeUniqueBlid() throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DELETE FROM "+table+" WHERE id NOT IN " +
+				"(SELECT MIN(id) FROM "+table+" GROUP BY blid)");
+		st.execute("DROP INDEX IF EXISTS blp_blid");
+		st.execute("ALTER TABLE "+table+" ADD UNIQUE(blid)");
+		st.execute("ALTER TABLE "+table+" ALTER COLUMN lastmod SET DEFAULT CURRENT_TIMESTAMP");
+	}
+	
+
 	/**
 	 * Creates Bricklink parts table
 	 * remove first full text index, if any
@@ -165,14 +845,29 @@ public class BricklinkPart {
 	 */
 	public static void createTable() throws SQLException {
 		
+		BricklinkLib.db.deleteFTS(table.toUpperCase());
+		createTable(table, true);
+		ImportState.clear(Mapping.NAME);
+	}
+	
+	
+	
+	/**
+	 * Creates a table with part table columns, with or without unique constraint on Bricklink id<br>
+	 * a table created without keys is for bulk load, keys are added with {@link #addKeys(String)} 
+	 * @param name table name, part table or its shadow table
+	 * @param keys if true creates unique constraint
+	 * @throws SQLException
+	 */
+	private static void createTable(String name, boolean keys) throws SQLException {
+		
 		Statement st;
 		
-		BricklinkLib.db.deleteFTS(table.toUpperCase());
 		st = BricklinkLib.db.createStatement();
-		st.execute("DROP TABLE IF EXISTS "+table+"; " +
-				"CREATE TABLE "+table+" (" +
+		st.execute("DROP TABLE IF EXISTS "+name+"; " +
+				"CREATE TABLE "+name+" (" +
 				"id INT PRIMARY KEY AUTO_INCREMENT, " +
-				"blid VARCHAR(64)," +
+				"blid VARCHAR(64)"+(keys ? " UNIQUE," : ",") +
 				"name VARCHAR(255)," +
 				"catid INT," +
 				"category VARCHAR(64)," +
@@ -181,9 +876,81 @@ public class BricklinkPart {
 				"dimy REAL," +
 				"dimz REAL," +
 				"deleted BOOL," +
-				"lastmod TIMESTAMP" +
+				"lastmod TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+				"hash BIGINT" +
 				"); COMMIT ");
+	}
+	
+	
+	
+	/**
+	 * Adds unique constraint on Bricklink id, after a bulk load
+	 * @param name table name
+	 * @throws SQLException
+	 */
+	private static void addKeys(String name) throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("ALTER TABLE "+name+" ADD UNIQUE(blid)");
+	}
+	
+	
+	
+	/**
+	 * Copies all rows of part table in an empty shadow table, keeping row ids
+	 * @throws SQLException
+	 */
+	private static void copyToShadow() throws SQLException {
+		
+		Statement st;
 		
+		st = BricklinkLib.db.createStatement();
+		st.executeUpdate("INSERT INTO "+nextTable+" (id,"+mergeFields+",lastmod) " +
+				"SELECT id,"+mergeFields+",lastmod FROM "+table);
+	}
+	
+	
+	
+	/**
+	 * Replaces part table with shadow table and rebuilds full text index<br>
+	 * Renames run in a single statement execution, so other users of the shared 
+	 * connection see old or new table, never a missing one. Full text index refers to 
+	 * table by name, so it can't be built on shadow table before swap, and is rebuilt 
+	 * from scratch after swap: until rebuild ends, text searches on parts return nothing,
+	 * while queries by id and Bricklink id work as usual.
+	 * @return nanoseconds spent rebuilding full text index
+	 * @throws SQLException
+	 */
+	private static long swapShadow() throws SQLException {
+		
+		Statement st;
+		long t;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+oldTable+"; " +
+				"ALTER TABLE "+table+" RENAME TO "+oldTable+"; " +
+				"ALTER TABLE "+nextTable+" RENAME TO "+table+"; " +
+				"DROP TABLE "+oldTable);
+		t = System.nanoTime();
+		BricklinkLib.db.deleteFTS(table.toUpperCase());
+		createFTS();
+		return System.nanoTime() - t;
+	}
+	
+	
+	
+	/**
+	 * Drops shadow table of an aborted import
+	 * @throws SQLException
+	 */
+	private static void dropShadow() throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+nextTable);
 	}
 
 	
@@ -207,36 +974,374 @@ public class BricklinkPart {
 	 */
 	public void update() throws SQLException{
 		
-		updatePS.setString(1, blid);
-		updatePS.setString(2, name);
-		updatePS.setInt(3, catId);
-		updatePS.setString(4, BricklinkCategory.getNameById(catId));
-		updatePS.setFloat(5, weight);
-		updatePS.setFloat(6, x);
-		updatePS.setFloat(7, y);
-		updatePS.setFloat(8, z);
-		updatePS.setBoolean(9, deleted);
-		updatePS.setInt(10, id);
+		CatalogImporter.lockWrites();
+		try {
+			setParams(updatePS);
+			updatePS.setInt(11, id);
+			updatePS.executeUpdate();
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	
+	/**
+	 * Queues an update for this part in update batch<br>
+	 * batch is sent to database when it reaches batch size, 
+	 * or with {@link #flushBatch()}
+	 * @throws SQLException
+	 */
+	public void addUpdateBatch() throws SQLException {
 		
-		updatePS.executeUpdate();
-		return;
+		CatalogImporter.lockWrites();
+		try {
+			setParams(updatePS);
+			updatePS.setInt(11, id);
+			updatePS.addBatch();
+			pendingUpdate++;
+			if (pendingUpdate >= batchSize) {
+				updatePS.executeBatch();
+				pendingUpdate = 0;
+			}
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	
+	/**
+	 * Queues an insert for this part in insert batch<br>
+	 * batch is sent to database when it reaches batch size, 
+	 * or with {@link #flushBatch()}
+	 * @throws SQLException
+	 */
+	public void addInsertBatch() throws SQLException {
+		
+		CatalogImporter.lockWrites();
+		try {
+			setParams(insertPS);
+			insertPS.addBatch();
+			pendingInsert++;
+			if (pendingInsert >= batchSize) {
+				insertPS.executeBatch();
+				pendingInsert = 0;
+			}
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	
+	/**
+	 * Queues an insert or update for this part in merge batch<br>
+	 * part is matched by Bricklink id, so no read before write is needed.<br>
+	 * Batch is sent to database when it reaches batch size, 
+	 * or with {@link #flushBatch()}
+	 * @throws SQLException
+	 */
+	public void addMergeBatch() throws SQLException {
 		
+		CatalogImporter.lockWrites();
+		try {
+			addMergeBatch(BricklinkCategory.getNameById(catId));
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
 	}
 	
 	
+	
 	/**
-	 * Prepare for part list update
+	 * Queues merge for this part with an already resolved category name
+	 * @param cat name of part category
 	 * @throws SQLException
 	 */
-	public static void beginUpdate() throws SQLException {
+	private void addMergeBatch(String cat) throws SQLException {
+		
+		setParams(mergePS, cat);
+		mergePS.addBatch();
+		pendingMerge++;
+		if (pendingMerge >= batchSize) {
+			mergePS.executeBatch();
+			pendingMerge = 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * Insert or update this part, matching by Bricklink id
+	 * @throws SQLException
+	 */
+	public void merge() throws SQLException {
+		
+		CatalogImporter.lockWrites();
+		try {
+			setParams(mergePS);
+			mergePS.executeUpdate();
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	
+	/**
+	 * Sends to database all queued inserts, updates and merges
+	 * @throws SQLException
+	 */
+	public static void flushBatch() throws SQLException {
+		
+		CatalogImporter.lockWrites();
+		try {
+			if (pendingMerge > 0) {
+				mergePS.executeBatch();
+				pendingMerge = 0;
+			}
+			if (pendingInsert > 0) {
+				insertPS.executeBatch();
+				pendingInsert = 0;
+			}
+			if (pendingUpdate > 0) {
+				updatePS.executeBatch();
+				pendingUpdate = 0;
+			}
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	
+	/**
+	 * Discards all queued inserts and updates
+	 * @throws SQLException
+	 */
+	public static void clearBatch() throws SQLException {
+		
+		insertPS.clearBatch();
+		updatePS.clearBatch();
+		mergePS.clearBatch();
+		pendingInsert = 0;
+		pendingUpdate = 0;
+		pendingMerge = 0;
+	}
+	
+	
+	
+	/**
+	 * @return number of rows queued before a batch is sent to database
+	 */
+	public static int getBatchSize() {
+		return batchSize;
+	}
 
-		Statement st;
+
+	/**
+	 * Sets how many rows are queued before a batch is sent to database<br>
+	 * batches save a round trip for every row with a server database, with embedded H2 
+	 * there is no round trip to save and import speed doesn't depend on batch size
+	 * @param size batch size, must be at least 1
+	 */
+	public static void setBatchSize(int size) {
+		
+		if (size < 1)
+			throw new IllegalArgumentException("[BricklinkPart] batch size must be at least 1");
+		batchSize = size;
+	}
+	
+	
+	
+	/**
+	 * Sets common part fields in insert or update statement, parameters 1 to 10
+	 * @param ps statement to fill
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps) throws SQLException {
+		
+		setParams(ps, BricklinkCategory.getNameById(catId));
+	}
+	
+	
+	
+	/**
+	 * Sets common part fields with an already resolved category name
+	 * @param ps statement to fill
+	 * @param cat name of part category
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps, String cat) throws SQLException {
+		
+		ps.setString(1, blid);
+		ps.setString(2, name);
+		ps.setInt(3, catId);
+		ps.setString(4, cat);
+		ps.setFloat(5, weight);
+		ps.setFloat(6, x);
+		ps.setFloat(7, y);
+		ps.setFloat(8, z);
+		ps.setBoolean(9, deleted);
+		ps.setLong(10, contentHash(cat));
+	}
+	
+	
+	
+	/**
+	 * Writes this part as a row for bulk load, columns as in {@link #mergeFields}
+	 * @param bulk bulk loader
+	 * @throws SQLException
+	 */
+	private void addBulkRow(BulkLoader bulk) throws SQLException {
 		
+		String cat = BricklinkCategory.getNameById(catId);
 		
+		bulk.add(blid);
+		bulk.add(name);
+		bulk.add(catId);
+		bulk.add(cat);
+		bulk.add(weight);
+		bulk.add(x);
+		bulk.add(y);
+		bulk.add(z);
+		bulk.add(deleted);
+		bulk.add(contentHash(cat));
+		bulk.endRow();
+	}
+	
+	
+	
+	/**
+	 * Computes hash of part content, as stored in part table
+	 * @param cat category name
+	 * @return content hash
+	 */
+	private long contentHash(String cat) {
+		
+		long h = ContentHash.INIT;
+		h = ContentHash.add(h, blid);
+		h = ContentHash.add(h, name);
+		h = ContentHash.add(h, catId);
+		h = ContentHash.add(h, cat);
+		h = ContentHash.add(h, weight);
+		h = ContentHash.add(h, x);
+		h = ContentHash.add(h, y);
+		h = ContentHash.add(h, z);
+		h = ContentHash.add(h, deleted);
+		return h;
+	}
+	
+	
+	
+	/**
+	 * @return hash of part content, to detect changes since last import
+	 * @throws SQLException
+	 */
+	public long contentHash() throws SQLException {
+		
+		return contentHash(BricklinkCategory.getNameById(catId));
+	}
+	
+	
+	/**
+	 * Prepare for part list update<br>
+	 * parts not seen during update must be marked as deleted with {@link #markDeleted(ItemIndex)}.
+	 * Waits for a running import, and keeps imports waiting until {@link #endUpdate()} 
+	 * or {@link #abortUpdate()}
+	 * @throws SQLException
+	 */
+	public static void beginUpdate() throws SQLException {
+
+		// importer thread already holds write lock, other callers keep it until update ends
+		if (!CatalogImporter.holdsWriteLock()) {
+			CatalogImporter.lockWrites();
+			updateLocked = true;
+		}
 		BricklinkLib.db.deleteFTS(table.toUpperCase());
 		BricklinkLib.db.autocommitDisable();
+	}
+	
+	
+	/**
+	 * Releases write lock taken by {@link #beginUpdate()} outside importers
+	 */
+	private static void releaseUpdate() {
+		
+		if (updateLocked) {
+			updateLocked = false;
+			CatalogImporter.unlockWrites();
+		}
+	}
+
+	
+	/**
+	 * Loads Bricklink id and row id for all parts in a single table scan
+	 * @return index of all parts in table
+	 * @throws SQLException
+	 */
+	public static ItemIndex loadIndex() throws SQLException {
+		
+		Statement st;
+		ResultSet rs;
+		ItemIndex index;
+		
 		st = BricklinkLib.db.createStatement();
-		st.execute("UPDATE "+table+" SET deleted=TRUE");
+		rs = st.executeQuery("SELECT COUNT(*) FROM "+table);
+		rs.next();
+		index = new ItemIndex(rs.getInt(1));
+		rs = st.executeQuery("SELECT id,blid,deleted,hash FROM "+table);
+		while (rs.next()) {
+			index.put(rs.getString(2), rs.getInt(1), rs.getBoolean(3), rs.getLong(4));
+		}
+		return index;
+	}
+	
+	
+	/**
+	 * Marks as deleted all parts not seen during current update
+	 * @param index part index used in update 
+	 * @return number of parts marked as deleted
+	 * @throws SQLException
+	 */
+	public static int markDeleted(ItemIndex index) throws SQLException {
+		
+		CatalogImporter.lockWrites();
+		try {
+			return markDeleted(table, index);
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
+	}
+	
+	
+	/**
+	 * Marks as deleted all parts not seen during current update, in part table or its shadow
+	 * @param name table name
+	 * @param index part index used in update 
+	 * @return number of parts marked as deleted
+	 * @throws SQLException
+	 */
+	private static int markDeleted(String name, ItemIndex index) throws SQLException {
+		
+		PreparedStatement ps;
+		int[] unseen = index.getUnseen();
+		
+		if (unseen.length == 0)
+			return 0;
+		// unchanged parts aren't written, row ids of unseen parts come from index.
+		// Batch of updates by primary key: H2 evaluates "id IN (SELECT ... FROM TABLE(...))"
+		// again for every row, a single statement is quadratic with number of rows
+		ps = BricklinkLib.db.prepareStatement("UPDATE "+name+" SET deleted=TRUE WHERE id=?");
+		for (int i = 0; i < unseen.length; i++) {
+			ps.setInt(1, unseen[i]);
+			ps.addBatch();
+			if ((i + 1) % batchSize == 0)
+				ps.executeBatch();
+		}
+		ps.executeBatch();
+		return unseen.length;
 	}
 
 	
@@ -246,10 +1351,15 @@ public class BricklinkPart {
 	 */
 	public static void abortUpdate() throws SQLException {
 
-		BricklinkLib.db.rollback();
-		BricklinkLib.db.autocommitEnable();
-		// restore full text index
-		createFTS();
+		try {
+			clearBatch();
+			BricklinkLib.db.rollback();
+			BricklinkLib.db.autocommitEnable();
+			// restore full text index
+			createFTS();
+		} finally {
+			releaseUpdate();
+		}
 	}
 
 	
@@ -260,8 +1370,13 @@ public class BricklinkPart {
 	 */
 	public static void endUpdate() throws SQLException {
 
-		BricklinkLib.db.commit();
-		BricklinkLib.db.autocommitEnable();
+		try {
+			flushBatch();
+			BricklinkLib.db.commit();
+			BricklinkLib.db.autocommitEnable();
+		} finally {
+			releaseUpdate();
+		}
 	}
 
 	
@@ -287,17 +1402,13 @@ public class BricklinkPart {
 	 */
 	public void insert() throws SQLException {
 
-		insertPS.setString(1, blid);
-		insertPS.setString(2, name);
-		insertPS.setInt(3, catId);
-		insertPS.setString(4, BricklinkCategory.getNameById(catId));
-		insertPS.setFloat(5, weight);
-		insertPS.setFloat(6, x);
-		insertPS.setFloat(7, y);
-		insertPS.setFloat(8, z);
-		insertPS.setBoolean(9, deleted);
-		
-		insertPS.executeUpdate();
+		CatalogImporter.lockWrites();
+		try {
+			setParams(insertPS);
+			insertPS.executeUpdate();
+		} finally {
+			CatalogImporter.unlockWrites();
+		}
 	}
 
 	
@@ -323,7 +1434,8 @@ public class BricklinkPart {
 	
 	/**
 	 * Retrieve a part using Bricklink part id<br>
-	 * Returns one part, if duplicates found, throw an exception (it is an error)
+	 * Returns one part. Bricklink id is unique in table, so duplicates found 
+	 * means a database not yet upgraded, and throw an exception (it is an error)
 	 * @param blid Bricklink ID to retrieve
 	 * @return part or null if no part found
 	 * @throws SQLException if there is a duplicate part definition
@@ -26,6 +26,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
@@ -45,10 +49,276 @@ public class BricklinkSet {
 	protected float weight; 				// weight in grams
 	protected float dimx, dimy, dimz;		// size in cm
 	public static final String table = "blsets";
+	/** shadow table, loaded by bulk load and swapped with set table when complete */
+	private static final String nextTable = table + "_next";
+	/** set table replaced by swap, dropped in the same statement */
+	private static final String oldTable = table + "_old";
 	private static PreparedStatement insertPS = null;
+	private static PreparedStatement mergePS = null;
+	/** rows queued in merge batch, not yet sent to database */
+	private static int pendingMerge = 0;
+	/** number of queued rows that triggers a batch execution */
+	private static int batchSize = 500;
 	public final static String fieldsOrder = "setid,name,category,catid,year,weight,dimx,dimy,dimz";
 	
 	
+	
+	/**
+	 * Set catalog mapping, only items of type "S"
+	 */
+	static class Mapping implements CatalogMapping<BricklinkSet> {
+		
+		/** catalog name */
+		static final String NAME = "sets";
+		private static final int ITEMID = 0;
+		private static final int ITEMNAME = 1;
+		private static final int CATEGORY = 2;
+		private static final int ITEMYEAR = 3;
+		private static final String[] TAGS = {
+			"ITEMID", "ITEMNAME", "CATEGORY", "ITEMYEAR"
+		};
+		
+		@Override
+		public String getItemType() {
+			return "S";
+		}
+
+		@Override
+		public String getRootTag() {
+			return "CATALOG";
+		}
+
+		@Override
+		public String getKeyTag() {
+			return "ITEMID";
+		}
+
+		@Override
+		public String[] getTags() {
+			return TAGS;
+		}
+
+		@Override
+		public BricklinkSet newItem() {
+			
+			BricklinkSet bs = new BricklinkSet();
+			bs.setid = "";
+			bs.name = "";
+			return bs;
+		}
+
+		@Override
+		public void setField(BricklinkSet bs, int tag, char[] text, int start, int len) {
+			
+			switch (tag) {
+			case ITEMID:
+				bs.setid = CharParser.getTrimmed(text, start, len);
+				break;
+			case ITEMNAME:
+				bs.name = CharParser.getTrimmed(text, start, len);
+				break;
+			case CATEGORY:
+				bs.catid = CharParser.parseInt(text, start, len);
+				break;
+			case ITEMYEAR:
+				bs.year = CharParser.parseInt(text, start, len);
+				break;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes imported sets as an update of set table<br>
+	 * sets are merged by Bricklink set id, sets not in import are marked as deleted.<br>
+	 * Update is committed in checkpoints, and an interrupted update can resume.<br>
+	 * Full text index is kept and updated by its trigger for changed sets only. If set 
+	 * table is empty every set is new, and the trigger commits index for every set: index 
+	 * is dropped before import and rebuilt once after commit. A resumed import rebuilds
+	 * index too, because an interrupted first import may have left it dropped.
+	 */
+	static class Sink implements SharedTransactionSink<BricklinkSet> {
+		
+		private ItemIndex index = null;
+		private int unchanged = 0;
+		private int resumed = 0;
+		private int written = 0;
+		private int deleted = 0;
+		private boolean ftsDropped = false;
+		private ImportStats stats = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			long t;
+			
+			stats = ImportStats.current(Mapping.NAME);
+			index = loadIndex();
+			if (index.size() == 0) {
+				// before transaction starts, index removal is DDL and commits
+				t = System.nanoTime();
+				BricklinkLib.db.deleteFTS(table.toUpperCase());
+				ftsDropped = true;
+				stats.addFts(System.nanoTime() - t);
+			}
+			beginUpdate();
+		}
+
+		@Override
+		public void write(List<BricklinkSet> items) throws SQLException {
+			
+			for (BricklinkSet bs : items) {
+				// write only new or changed sets, category name is looked up once
+				bs.catname = BricklinkCategory.getNameById(bs.catid);
+				switch (index.seenState(bs.setid, bs.contentHash(bs.catname))) {
+				case ItemIndex.INSERTED:
+					bs.addMergeBatch(bs.catname);
+					stats.addInserts(1);
+					break;
+				case ItemIndex.UPDATED:
+					bs.addMergeBatch(bs.catname);
+					stats.addUpdates(1);
+					break;
+				default:
+					unchanged++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void checkpoint() throws SQLException {
+			
+			flushBatch();
+			BricklinkLib.db.commit();
+		}
+
+		@Override
+		public void skip(List<BricklinkSet> items) throws SQLException {
+			
+			for (BricklinkSet bs : items) {
+				// committed by interrupted import, write only if row is missing
+				if (index.markSeen(bs.setid) == ItemIndex.NOT_FOUND) {
+					bs.addMergeBatch();
+					stats.addInserts(1);
+				}
+				else {
+					resumed++;
+					stats.addUnchanged(1);
+				}
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			if (count == 0) {
+				// no sets in update?!?
+				abortUpdate();
+				return;
+			}
+			finish(count);
+			endUpdate();
+			afterCommit();
+		}
+
+		@Override
+		public void finish(int count) throws SQLException {
+			
+			flushBatch();
+			deleted = markDeleted(index);
+			stats.addDeleted(deleted);
+			written = count;
+		}
+
+		@Override
+		public void afterCommit() throws SQLException {
+			
+			long t;
+			
+			if (ftsDropped || resumed > 0) {
+				t = System.nanoTime();
+				BricklinkLib.db.deleteFTS(table.toUpperCase());
+				createFTS();
+				stats.addCommitFts(System.nanoTime() - t);
+			}
+			Logger.getGlobal().log(Level.INFO,"[BricklinkSet] "+(written-unchanged-resumed)+" sets written, "+
+					unchanged+" unchanged, "+resumed+" resumed, "+deleted+" deleted");
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			abortUpdate();
+		}
+	}
+	
+	
+	
+	/**
+	 * Rebuilds set table from import with a bulk load<br>
+	 * for first install or recovery: a shadow table is loaded, unique constraint is 
+	 * created once, after load, and shadow table is swapped with set table. If load fails 
+	 * set table is left untouched. Existing rows and deleted sets are lost. If set id 
+	 * is repeated in import, only first set is kept.
+	 */
+	static class BulkSink implements CatalogSink<BricklinkSet> {
+		
+		private BulkLoader bulk = null;
+		private HashSet<String> seen = null;
+		
+		@Override
+		public void begin() throws SQLException {
+			
+			bulk = new BulkLoader(fieldsOrder+",hash");
+			seen = new HashSet<String>();
+		}
+
+		@Override
+		public void write(List<BricklinkSet> items) throws SQLException {
+			
+			for (BricklinkSet bs : items) {
+				if (seen.add(bs.setid))
+					bs.addBulkRow(bulk);
+			}
+		}
+
+		@Override
+		public void end(int count) throws SQLException {
+			
+			long start;
+			int loaded;
+			ImportStats stats = ImportStats.current(Mapping.NAME);
+			
+			try {
+				if (count == 0) {
+					// no sets in import?!? keep current table
+					return;
+				}
+				start = System.currentTimeMillis();
+				createTable(nextTable, false);
+				loaded = bulk.load(nextTable);
+				addKeys(nextTable);
+				stats.addCommitFts(swapShadow());
+				stats.addInserts(loaded);
+				Logger.getGlobal().log(Level.INFO,"[BricklinkSet] "+loaded+" sets bulk loaded in "+
+						(System.currentTimeMillis()-start)+" ms");
+			} finally {
+				bulk.close();
+			}
+		}
+
+		@Override
+		public void abort() throws SQLException {
+			
+			if (bulk != null)
+				bulk.close();
+			dropShadow();
+		}
+	}
+	
+	
 	@Override
 	public String toString() {
 		return "BricklinkSet [id=" + id + ", setid=" + setid + ", name=" + name
@@ -126,10 +396,124 @@ public class BricklinkSet {
 
 		// prepared statement
 		insertPS = BricklinkLib.db.prepareStatement("INSERT INTO "+table+" ("+fieldsOrder+
-				") VALUES (?,?,?,?,?,?,?,?,?)"
+				",hash) VALUES (?,?,?,?,?,?,?,?,?,?)"
+				);
+		// insert or update using unique set id, lastmod is set by column default only on insert
+		mergePS = BricklinkLib.db.prepareStatement("MERGE INTO "+table+" ("+fieldsOrder+
+				",hash,deleted) KEY(setid) VALUES (?,?,?,?,?,?,?,?,?,?,FALSE)"
 				);
 	}
 	
+	
+	
+	/**
+	 * Upgrade set table for incremental update<br>
+	 * removes duplicate sets, keeping the oldest row, adds deleted flag, 
+	 * last modified time and an unique constraint on set id
+	 * @throws SQLException
+	 */
+	protected static void upgradeIncremental() throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DELETE FROM "+table+" WHERE id NOT IN " +
+				"(SELECT MIN(id) FROM "+table+" GROUP BY setid)");
+		st.execute("ALTER TABLE "+table+" ADD COLUMN deleted BOOL DEFAULT FALSE");
+		st.execute("ALTER TABLE "+table+" ADD COLUMN lastmod TIMESTAMP DEFAULT CURRENT_TIMESTAMP");
+		st.execute("ALTER TABLE "+table+" ADD UNIQUE(setid)");
+	}
+	
+	
+	
+	/**
+	 * Prepare for set list update<br>
+	 * full text index is kept, and updated only for changed sets.<br>
+	 * sets not seen during update must be marked as deleted with {@link #markDeleted(ItemIndex)}
+	 * @throws SQLException
+	 */
+	public static void beginUpdate() throws SQLException {
+
+		BricklinkLib.db.autocommitDisable();
+	}
+
+	
+	/**
+	 * Restore previous list if an update fails
+	 * @throws SQLException
+	 */
+	public static void abortUpdate() throws SQLException {
+
+		clearBatch();
+		BricklinkLib.db.rollback();
+		BricklinkLib.db.autocommitEnable();
+		// full text index isn't transactional, rebuild it
+		createFTS();
+	}
+
+	
+	/**
+	 * Completes an update
+	 * @throws SQLException
+	 */
+	public static void endUpdate() throws SQLException {
+
+		flushBatch();
+		BricklinkLib.db.commit();
+		BricklinkLib.db.autocommitEnable();
+	}
+	
+	
+	/**
+	 * Loads set id and row id for all sets in a single table scan
+	 * @return index of all sets in table
+	 * @throws SQLException
+	 */
+	public static ItemIndex loadIndex() throws SQLException {
+		
+		Statement st;
+		ResultSet rs;
+		ItemIndex index;
+		
+		st = BricklinkLib.db.createStatement();
+		rs = st.executeQuery("SELECT COUNT(*) FROM "+table);
+		rs.next();
+		index = new ItemIndex(rs.getInt(1));
+		rs = st.executeQuery("SELECT id,setid,deleted,hash FROM "+table);
+		while (rs.next()) {
+			index.put(rs.getString(2), rs.getInt(1), rs.getBoolean(3), rs.getLong(4));
+		}
+		return index;
+	}
+	
+	
+	/**
+	 * Marks as deleted all sets not seen during current update
+	 * @param index set index used in update 
+	 * @return number of sets marked as deleted
+	 * @throws SQLException
+	 */
+	public static int markDeleted(ItemIndex index) throws SQLException {
+		
+		PreparedStatement ps;
+		int[] unseen = index.getUnseen();
+		
+		if (unseen.length == 0)
+			return 0;
+		// unchanged sets aren't written, row ids of unseen sets come from index.
+		// Batch of updates by primary key: H2 evaluates "id IN (SELECT ... FROM TABLE(...))"
+		// again for every row, a single statement is quadratic with number of rows
+		ps = BricklinkLib.db.prepareStatement("UPDATE "+table+" SET deleted=TRUE WHERE id=?");
+		for (int i = 0; i < unseen.length; i++) {
+			ps.setInt(1, unseen[i]);
+			ps.addBatch();
+			if ((i + 1) % batchSize == 0)
+				ps.executeBatch();
+		}
+		ps.executeBatch();
+		return unseen.length;
+	}
+	
 
 	/**
 	 * Creates Bricklink sets table
@@ -138,14 +522,29 @@ public class BricklinkSet {
 	 */
 	public static void createTable() throws SQLException {
 		
+		BricklinkLib.db.deleteFTS(table.toUpperCase());
+		createTable(table, true);
+		ImportState.clear(Mapping.NAME);
+	}
+	
+	
+	
+	/**
+	 * Creates a table with set table columns, with or without unique constraint on set id<br>
+	 * a table created without keys is for bulk load, keys are added with {@link #addKeys(String)} 
+	 * @param name table name, set table or its shadow table
+	 * @param keys if true creates unique constraint
+	 * @throws SQLException
+	 */
+	private static void createTable(String name, boolean keys) throws SQLException {
+		
 		Statement st;
 		
-		BricklinkLib.db.deleteFTS(table.toUpperCase());
 		st = BricklinkLib.db.createStatement();
-		st.execute("DROP TABLE IF EXISTS "+table+"; " +
-				"CREATE TABLE "+table+" (" +
+		st.execute("DROP TABLE IF EXISTS "+name+"; " +
+				"CREATE TABLE "+name+" (" +
 				"id INT PRIMARY KEY AUTO_INCREMENT," +
-				"setid VARCHAR(64)," +
+				"setid VARCHAR(64)"+(keys ? " UNIQUE," : ",") +
 				"name VARCHAR(255)," +
 				"category VARCHAR(255)," +
 				"catid INT," +
@@ -153,9 +552,67 @@ public class BricklinkSet {
 				"weight REAL," +
 				"dimx REAL," +
 				"dimy REAL," +
-				"dimz REAL" +				
+				"dimz REAL," +
+				"hash BIGINT," +
+				"deleted BOOL DEFAULT FALSE," +
+				"lastmod TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
 				"); COMMIT ");
+	}
+	
+	
+	
+	/**
+	 * Adds unique constraint on set id, after a bulk load
+	 * @param name table name
+	 * @throws SQLException
+	 */
+	private static void addKeys(String name) throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("ALTER TABLE "+name+" ADD UNIQUE(setid)");
+	}
+	
+	
+	
+	/**
+	 * Replaces set table with shadow table and rebuilds full text index<br>
+	 * Renames run in a single statement execution, so other users of the shared 
+	 * connection see old or new table, never a missing one. Full text index refers to 
+	 * table by name and is rebuilt from scratch after swap: until rebuild ends, text 
+	 * searches on sets return nothing.
+	 * @return nanoseconds spent rebuilding full text index
+	 * @throws SQLException
+	 */
+	private static long swapShadow() throws SQLException {
 		
+		Statement st;
+		long t;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+oldTable+"; " +
+				"ALTER TABLE "+table+" RENAME TO "+oldTable+"; " +
+				"ALTER TABLE "+nextTable+" RENAME TO "+table+"; " +
+				"DROP TABLE "+oldTable);
+		t = System.nanoTime();
+		BricklinkLib.db.deleteFTS(table.toUpperCase());
+		createFTS();
+		return System.nanoTime() - t;
+	}
+	
+	
+	
+	/**
+	 * Drops shadow table of an aborted bulk load
+	 * @throws SQLException
+	 */
+	private static void dropShadow() throws SQLException {
+		
+		Statement st;
+		
+		st = BricklinkLib.db.createStatement();
+		st.execute("DROP TABLE IF EXISTS "+nextTable);
 	}
 
 
@@ -176,23 +633,197 @@ public class BricklinkSet {
 	/**
 	 * Insert a set in table<br>
 	 * set attributes must be already defined<br>
-	 * category name is added on the fly, querying Bricklink categories table 
+	 * category name is added on the fly, from Bricklink categories cache 
 	 * @throws SQLException
 	 */
 	public void insert() throws SQLException {
 		
-		insertPS.setString(1,setid);
-		insertPS.setString(2,name);
-		insertPS.setString(3,BricklinkCategory.getNameById(catid));
-		insertPS.setInt(4,catid);
-		insertPS.setInt(5,year);
-		insertPS.setFloat(6, weight);
-		insertPS.setFloat(7, dimx);
-		insertPS.setFloat(8, dimy);
-		insertPS.setFloat(9, dimz);
+		setParams(insertPS);
 		insertPS.executeUpdate();
 		
 	}
+	
+	
+	
+	/**
+	 * Insert or update this set, matching by Bricklink set id
+	 * @throws SQLException
+	 */
+	public void merge() throws SQLException {
+		
+		setParams(mergePS);
+		mergePS.executeUpdate();
+	}
+	
+	
+	
+	/**
+	 * Queues an insert or update for this set in merge batch<br>
+	 * set is matched by Bricklink set id.<br>
+	 * Batch is sent to database when it reaches batch size, 
+	 * or with {@link #flushBatch()}
+	 * @throws SQLException
+	 */
+	public void addMergeBatch() throws SQLException {
+		
+		addMergeBatch(BricklinkCategory.getNameById(catid));
+	}
+	
+	
+	
+	/**
+	 * Queues merge for this set with an already resolved category name
+	 * @param cat name of set category
+	 * @throws SQLException
+	 */
+	private void addMergeBatch(String cat) throws SQLException {
+		
+		setParams(mergePS, cat);
+		mergePS.addBatch();
+		pendingMerge++;
+		if (pendingMerge >= batchSize) {
+			mergePS.executeBatch();
+			pendingMerge = 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * Sends to database all queued merges
+	 * @throws SQLException
+	 */
+	public static void flushBatch() throws SQLException {
+		
+		if (pendingMerge > 0) {
+			mergePS.executeBatch();
+			pendingMerge = 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * Discards all queued merges
+	 * @throws SQLException
+	 */
+	public static void clearBatch() throws SQLException {
+		
+		mergePS.clearBatch();
+		pendingMerge = 0;
+	}
+	
+	
+	
+	/**
+	 * @return number of rows queued before a batch is sent to database
+	 */
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+
+	/**
+	 * Sets how many rows are queued before a batch is sent to database
+	 * @param size batch size, must be at least 1
+	 */
+	public static void setBatchSize(int size) {
+		
+		if (size < 1)
+			throw new IllegalArgumentException("[BricklinkSet] batch size must be at least 1");
+		batchSize = size;
+	}
+	
+	
+	
+	/**
+	 * Sets set fields in insert or merge statement, parameters 1 to 10
+	 * @param ps statement to fill
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps) throws SQLException {
+		
+		setParams(ps, BricklinkCategory.getNameById(catid));
+	}
+	
+	
+	
+	/**
+	 * Sets set fields with an already resolved category name
+	 * @param ps statement to fill
+	 * @param cat name of set category
+	 * @throws SQLException
+	 */
+	private void setParams(PreparedStatement ps, String cat) throws SQLException {
+		
+		ps.setString(1,setid);
+		ps.setString(2,name);
+		ps.setString(3,cat);
+		ps.setInt(4,catid);
+		ps.setInt(5,year);
+		ps.setFloat(6, weight);
+		ps.setFloat(7, dimx);
+		ps.setFloat(8, dimy);
+		ps.setFloat(9, dimz);
+		ps.setLong(10, contentHash(cat));
+	}
+	
+	
+	
+	/**
+	 * Writes this set as a row for bulk load, columns as in {@link #fieldsOrder} and hash
+	 * @param bulk bulk loader
+	 * @throws SQLException
+	 */
+	private void addBulkRow(BulkLoader bulk) throws SQLException {
+		
+		String cat = BricklinkCategory.getNameById(catid);
+		
+		bulk.add(setid);
+		bulk.add(name);
+		bulk.add(cat);
+		bulk.add(catid);
+		bulk.add(year);
+		bulk.add(weight);
+		bulk.add(dimx);
+		bulk.add(dimy);
+		bulk.add(dimz);
+		bulk.add(contentHash(cat));
+		bulk.endRow();
+	}
+	
+	
+	
+	/**
+	 * @return hash of set content, to detect changes since last import
+	 * @throws SQLException
+	 */
+	public long contentHash() throws SQLException {
+		
+		return contentHash(BricklinkCategory.getNameById(catid));
+	}
+	
+	
+	
+	/**
+	 * Computes hash of set content, as stored in set table
+	 * @param cat category name
+	 * @return content hash
+	 */
+	private long contentHash(String cat) {
+		
+		long h = ContentHash.INIT;
+		h = ContentHash.add(h, setid);
+		h = ContentHash.add(h, name);
+		h = ContentHash.add(h, cat);
+		h = ContentHash.add(h, catid);
+		h = ContentHash.add(h, year);
+		h = ContentHash.add(h, weight);
+		h = ContentHash.add(h, dimx);
+		h = ContentHash.add(h, dimy);
+		h = ContentHash.add(h, dimz);
+		return h;
+	}
 
 	
 	/**
@@ -239,10 +870,10 @@ public class BricklinkSet {
 	public static PreparedStatement prepareSelect(String query) throws SQLException {
 		
 		if (query != null && query.length() > 0) {
-			return BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table+" WHERE "+query);
+			return BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table+" WHERE NOT deleted AND ("+query+")");
 		}
 		else {
-			return BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table);
+			return BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table+" WHERE NOT deleted");
 		}
 	}
 	
@@ -261,11 +892,11 @@ public class BricklinkSet {
 		
 		if (query != null && query.length() > 0) {
 			return BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM FTL_SEARCH_DATA(?,0,0) f " +
-						"LEFT JOIN "+table+" b on (f.keys[0]=b.id) WHERE f.table='BLSETS' "+query);
+						"LEFT JOIN "+table+" b on (f.keys[0]=b.id) WHERE f.table='BLSETS' AND NOT b.deleted "+query);
 		}
 		else {
 			return BricklinkLib.db.prepareStatement("SELECT id,"+fieldsOrder+" FROM FTL_SEARCH_DATA(?,0,0) f " +
-					"LEFT JOIN "+table+" b on (f.keys[0]=b.id) WHERE f.table='BLSETS'");
+					"LEFT JOIN "+table+" b on (f.keys[0]=b.id) WHERE f.table='BLSETS' AND NOT b.deleted");
 		}
 	}
 	
@@ -282,7 +913,7 @@ public class BricklinkSet {
 		
 		PreparedStatement ps;
 		
-		ps = BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table+" WHERE setid like ?");
+		ps = BricklinkLib.db.prepareStatement("SELECT "+fieldsOrder+" FROM "+table+" WHERE setid like ? AND NOT deleted");
 		setid += "%";
 		ps.setString(1, setid);
 		return getPS(ps);
@@ -0,0 +1,193 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * Bulk table load with H2 CSVREAD<br>
+ * Rows are written to a temporary CSV file, then loaded with a single
+ * INSERT INTO ... SELECT * FROM CSVREAD(...), with less work in writer thread 
+ * than batched inserts: table load runs inside database engine.<br>
+ * CSV file is read by database engine, so database must be embedded or share
+ * temporary directory with client.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class BulkLoader implements Closeable {
+
+	private final String columns;
+	private final File csv;
+	private Writer out;
+	private boolean rowStart = true;
+	private int rows = 0;
+
+
+
+	/**
+	 * Creates a loader and its temporary CSV file
+	 * @param columns comma separated list of table columns, in the same order as row fields
+	 * @throws SQLException if temporary file can't be created
+	 */
+	public BulkLoader(String columns) throws SQLException {
+
+		this.columns = columns;
+		try {
+			csv = File.createTempFile("bllib", ".csv");
+			csv.deleteOnExit();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8), 65536);
+		} catch (IOException e) {
+			throw new SQLException("[BulkLoader] unable to create temporary file", e);
+		}
+	}
+
+
+
+	/**
+	 * @return number of complete rows written
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+
+
+	private void field(String s) throws SQLException {
+
+		try {
+			if (!rowStart)
+				out.write(',');
+			out.write(s);
+			rowStart = false;
+		} catch (IOException e) {
+			throw new SQLException("[BulkLoader] error writing temporary file", e);
+		}
+	}
+
+
+
+	/**
+	 * Adds a string field, always quoted so an empty string isn't read as NULL
+	 * @param s field value, <code>null</code> for NULL
+	 * @throws SQLException
+	 */
+	public void add(String s) throws SQLException {
+
+		if (s == null)
+			field("");
+		else
+			field("\"" + s.replace("\"", "\"\"") + "\"");
+	}
+
+
+	public void add(int i) throws SQLException {
+		field(Integer.toString(i));
+	}
+
+
+	public void add(long l) throws SQLException {
+		field(Long.toString(l));
+	}
+
+
+	public void add(float f) throws SQLException {
+		field(Float.toString(f));
+	}
+
+
+	public void add(boolean b) throws SQLException {
+		field(b ? "TRUE" : "FALSE");
+	}
+
+
+
+	/**
+	 * Ends current row
+	 * @throws SQLException
+	 */
+	public void endRow() throws SQLException {
+
+		try {
+			out.write('\n');
+		} catch (IOException e) {
+			throw new SQLException("[BulkLoader] error writing temporary file", e);
+		}
+		rowStart = true;
+		rows++;
+	}
+
+
+
+	/**
+	 * Loads all rows in a table with a single statement<br>
+	 * no more rows can be added after load
+	 * @param table destination table
+	 * @return number of rows loaded
+	 * @throws SQLException
+	 */
+	public int load(String table) throws SQLException {
+
+		Statement st;
+
+		try {
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new SQLException("[BulkLoader] error writing temporary file", e);
+		}
+		st = BricklinkLib.db.createStatement();
+		return st.executeUpdate("INSERT INTO "+table+" ("+columns+") " +
+				"SELECT * FROM CSVREAD('"+csv.getAbsolutePath().replace("'", "''")+"'," +
+				"'"+columns.toUpperCase()+"','charset=UTF-8')");
+	}
+
+
+
+	/**
+	 * Deletes temporary file
+	 */
+	@Override
+	public void close() {
+
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				;
+			}
+			out = null;
+		}
+		csv.delete();
+	}
+
+}
@@ -0,0 +1,739 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+
+/**
+ * Generic import engine for Bricklink catalog XML dumps<br>
+ * All Bricklink catalogs (parts, sets, categories, colors) share the same flat shape:
+ * &lt;CATALOG&gt;&lt;ITEM&gt;&lt;TAG&gt;value&lt;/TAG&gt;...&lt;/ITEM&gt;...&lt;/CATALOG&gt;, set
+ * inventories too, with &lt;INVENTORY&gt; as root. A document with a root other than 
+ * the one of mapping is rejected.<br>
+ * Entity specific work is done by a {@link CatalogMapping} (tag to field) and a 
+ * {@link CatalogSink} (database writes). Parsing runs in its own thread, 
+ * and items are written in batches by caller thread.<br>
+ * Plain XML files are memory mapped and parsed by {@link FastCatalogParser}, in parallel 
+ * chunks for large files (see {@link ChunkedCatalogParser}); compressed input, streams 
+ * and documents with unexpected shape are parsed with StAX. Tab-delimited catalog 
+ * downloads are detected by content and parsed by {@link TsvCatalogParser}, with the same
+ * mapping.<br>
+ * Sinks implementing {@link CheckpointSink} are committed every few items, and an 
+ * interrupted import of the same file resumes from last checkpoint. Imports from a stream
+ * can't be resumed, so they are committed only at end.
+ * 
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public class CatalogImporter<T> {
+	
+	/**
+	 * Receives import progress
+	 */
+	public interface ProgressListener {
+		
+		/**
+		 * @param percent percent of input processed, from 0 to 100
+		 */
+		public void progress(int percent);
+	}
+	
+	
+	/** minimum time between progress updates, in milliseconds */
+	public static final long PROGRESS_INTERVAL = 100;
+	/** default number of items between checkpoints */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	/** tag id for tags not in mapping */
+	private static final int NO_TAG = -1;
+	/** tag id for item type tag */
+	private static final int TYPE_TAG = -2;
+	/** bytes read to detect catalog format */
+	private static final int HEAD_SIZE = 64;
+	/** serializes database writes of concurrent imports */
+	private static final ReentrantLock WRITE_LOCK = new ReentrantLock();
+	
+	private final String name;
+	private final CatalogMapping<T> mapping;
+	private final CatalogSink<T> sink;
+	private final HashMap<String,Integer> tagIds;
+	private final String itemType;
+	private final String rootTag;
+	private int batchSize = 500;
+	private boolean skipUnchanged = true;
+	private boolean fastPath = true;
+	private boolean singleType = false;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private ImportStats lastStats = null;
+	
+	
+	/**
+	 * Parser stage state, shared with writer stage for progress
+	 */
+	private static class ParseState {
+		
+		volatile CountingInputStream counter;
+		volatile ChunkedCatalogParser<?> fast;
+		long bytes;
+		long checksum;
+		
+		long getPosition() {
+			
+			CountingInputStream c = counter;
+			ChunkedCatalogParser<?> f = fast;
+			
+			if (c != null)
+				return c.getCount();
+			if (f != null)
+				return f.getPosition();
+			return 0;
+		}
+	}
+	
+	
+	
+	/**
+	 * Creates an importer for an entity
+	 * @param name entity name, for logging
+	 * @param mapping tag to field mapping
+	 * @param sink item destination
+	 */
+	public CatalogImporter(String name, CatalogMapping<T> mapping, CatalogSink<T> sink) {
+		
+		String[] tags;
+		
+		this.name = name;
+		this.mapping = mapping;
+		this.sink = sink;
+		itemType = mapping.getItemType();
+		rootTag = mapping.getRootTag();
+		tags = mapping.getTags();
+		tagIds = new HashMap<String,Integer>(tags.length * 2);
+		for (int i = 0; i < tags.length; i++) {
+			tagIds.put(tags[i], i);
+		}
+		if (itemType != null)
+			tagIds.put("ITEMTYPE", TYPE_TAG);
+	}
+	
+	
+	
+	/**
+	 * @return number of items written in a single batch
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+
+	/**
+	 * @param batchSize number of items written in a single batch, must be at least 1
+	 */
+	public void setBatchSize(int batchSize) {
+		
+		if (batchSize < 1)
+			throw new IllegalArgumentException("[CatalogImporter] batch size must be at least 1");
+		this.batchSize = batchSize;
+	}
+
+
+
+	/**
+	 * @return true if import is skipped when file is the same as last import
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+
+	/**
+	 * @param skipUnchanged if true (default) import is skipped when file has same size 
+	 *   and checksum of last successful import
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+
+
+	/**
+	 * @return true if plain XML files are parsed with memory mapped fast parser
+	 */
+	public boolean isFastPath() {
+		return fastPath;
+	}
+
+
+	/**
+	 * @param fastPath if true (default) plain XML files are memory mapped and parsed 
+	 *   by {@link FastCatalogParser}, falling back to StAX if document has unexpected shape
+	 */
+	public void setFastPath(boolean fastPath) {
+		this.fastPath = fastPath;
+	}
+
+
+
+	/**
+	 * @return true if tab-delimited files are declared of mapping item type only
+	 */
+	public boolean isSingleType() {
+		return singleType;
+	}
+
+
+	/**
+	 * @param singleType if true a tab-delimited file without "Item Type" column is 
+	 *   imported as items of mapping type, default false: such file is rejected
+	 */
+	public void setSingleType(boolean singleType) {
+		this.singleType = singleType;
+	}
+
+
+
+	/**
+	 * @return number of items between checkpoints
+	 */
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+
+	/**
+	 * Sets how often an import is committed, for sinks that support checkpoints 
+	 * (see {@link CheckpointSink}). Imports from a stream are always committed only at end.
+	 * @param checkpointInterval number of items between checkpoints, 0 to commit only at end
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		
+		if (checkpointInterval < 0)
+			throw new IllegalArgumentException("[CatalogImporter] checkpoint interval can't be negative");
+		this.checkpointInterval = checkpointInterval;
+	}
+
+
+
+	/**
+	 * @return metrics of last import, or null if no import was done
+	 */
+	public ImportStats getStats() {
+		return lastStats;
+	}
+
+
+
+	/**
+	 * @return number of threads parsing a plain XML file
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+
+	/**
+	 * @param parallelism number of threads parsing a plain XML file, default is number
+	 *   of available processors. With 1, file is parsed sequentially
+	 */
+	public void setParallelism(int parallelism) {
+		
+		if (parallelism < 1)
+			throw new IllegalArgumentException("[CatalogImporter] parallelism must be at least 1");
+		this.parallelism = parallelism;
+	}
+
+
+
+	/**
+	 * Serializes a write outside importers with running imports, waiting for import end<br>
+	 * reentrant: importer thread, that already holds lock, doesn't wait
+	 * @throws SQLException if interrupted while waiting
+	 */
+	static void lockWrites() throws SQLException {
+		
+		try {
+			WRITE_LOCK.lockInterruptibly();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("[CatalogImporter] interrupted waiting for import end", e);
+		}
+	}
+	
+	
+	/**
+	 * Releases lock taken by {@link #lockWrites()}
+	 */
+	static void unlockWrites() {
+		
+		WRITE_LOCK.unlock();
+	}
+	
+	
+	/**
+	 * @return true if current thread holds write lock, as importer or after {@link #lockWrites()}
+	 */
+	static boolean holdsWriteLock() {
+		
+		return WRITE_LOCK.isHeldByCurrentThread();
+	}
+
+
+
+	/**
+	 * Reads input up to end, so checksum covers whole file
+	 * @param is input stream
+	 * @throws IOException
+	 */
+	private static void drain(InputStream is) throws IOException {
+		
+		byte[] buf = new byte[8192];
+		while (is.read(buf) > 0)
+			;
+	}
+
+
+
+	/**
+	 * Checks if a decoded stream is a tab-delimited catalog, without consuming it
+	 * @param in stream that supports mark
+	 * @return true if stream doesn't start with '&lt;'
+	 * @throws IOException
+	 */
+	private static boolean isTabular(InputStream in) throws IOException {
+		
+		byte[] head = new byte[HEAD_SIZE];
+		int n = 0,r;
+		
+		in.mark(head.length);
+		while (n < head.length && (r = in.read(head, n, head.length - n)) > 0)
+			n += r;
+		in.reset();
+		return TsvCatalogParser.isTabular(head, n);
+	}
+	
+	
+	
+	/**
+	 * Checks if a plain file is a tab-delimited catalog
+	 * @param file file to check
+	 * @return true if file doesn't start with '&lt;'
+	 * @throws IOException
+	 */
+	private static boolean isTabular(File file) throws IOException {
+		
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return isTabular(new BufferedInputStream(fis, HEAD_SIZE));
+		} finally {
+			fis.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Checksum of a mapped file, in chunks
+	 * @param mb mapped file
+	 * @return CRC32 of whole buffer
+	 */
+	private static long checksum(MappedByteBuffer mb) {
+		
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[65536];
+		int n;
+		
+		mb.position(0);
+		while (mb.hasRemaining()) {
+			n = Math.min(buf.length, mb.remaining());
+			mb.get(buf, 0, n);
+			crc.update(buf, 0, n);
+		}
+		return crc.getValue();
+	}
+	
+	
+	
+	/**
+	 * Parser stage: reads items from source and hands them off to pipeline<br>
+	 * Plain files are tried first with fast parser; if document doesn't match 
+	 * catalog shape, StAX parser continues after items already handed off.
+	 * Sources that don't start with '&lt;' are read as tab-delimited catalogs.
+	 * @param src source to parse
+	 * @param pipe pipeline to writer stage
+	 * @param state parser state, for progress and checksum
+	 * @throws Exception
+	 */
+	private void parseSource(CatalogSource src, ImportPipeline<T> pipe, ParseState state) throws Exception {
+		
+		int skip = 0;
+		long start,elapsed;
+		CountingInputStream cis;
+		CheckedInputStream chk;
+		InputStream in;
+		XMLInputFactory xmlFact;
+		XMLStreamReader xsr;
+		
+		if (fastPath && src.isMappable() && !isTabular(src.getFile())) {
+			FileInputStream fis = new FileInputStream(src.getFile());
+			try {
+				FileChannel fc = fis.getChannel();
+				MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				ChunkedCatalogParser<T> fast = new ChunkedCatalogParser<T>(mapping, parallelism);
+				state.fast = fast;
+				start = System.nanoTime();
+				if (fast.parse(mb, pipe)) {
+					elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+					Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+name+" fast parse ("+parallelism+" threads) "+
+							(mb.limit()*1000L/elapsed/1024/1024)+" MB/s");
+					state.bytes = mb.limit();
+					state.checksum = checksum(mb);
+					return;
+				}
+				skip = fast.getItems();
+				Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+src.getName()+
+						" has unexpected shape after byte "+fast.getPosition()+", continue with XML parser");
+			} finally {
+				fis.close();
+			}
+		}
+		// checksum and progress on raw bytes, before decompression
+		chk = new CheckedInputStream(src.openRaw(), new CRC32());
+		cis = new CountingInputStream(chk);
+		in = src.decode(cis);
+		if (!in.markSupported())
+			in = new BufferedInputStream(in);
+		state.counter = cis;
+		try {
+			if (isTabular(in)) {
+				// Bricklink has tab-delimited downloads only for catalogs
+				if (!rootTag.equals("CATALOG"))
+					throw new IOException("[CatalogImporter] "+name+": tab-delimited file, expected XML with "+
+							rootTag+" root");
+				TsvCatalogParser<T> tsv = new TsvCatalogParser<T>(mapping, singleType);
+				start = System.nanoTime();
+				tsv.parse(new InputStreamReader(in, StandardCharsets.UTF_8), pipe);
+				// checksum the rest of file, like XML path
+				drain(cis);
+				elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+				Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+name+" tab-delimited parse "+
+						(cis.getCount()*1000L/elapsed/1024/1024)+" MB/s");
+				state.bytes = cis.getCount();
+				state.checksum = chk.getChecksum().getValue();
+				return;
+			}
+			xmlFact = XMLInputFactory.newInstance();
+			xmlFact.setProperty(XMLInputFactory.IS_COALESCING,true);
+			// parser closes its stream at end of document, but rest of file is needed for checksum
+			xsr = xmlFact.createXMLStreamReader(src.getName(), new EntityRepairInputStream(
+					new FilterInputStream(in) {
+						@Override
+						public void close() {
+							// closed by importer
+						}
+					}));
+			start = System.nanoTime();
+			try {
+				parse(xsr, pipe, skip);
+				// checksum the rest of file
+				drain(cis);
+			} finally {
+				try {
+					xsr.close();
+				} catch (XMLStreamException ex) {
+					;
+				}
+			}
+			elapsed = Math.max((System.nanoTime() - start) / 1000000, 1);
+			Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+name+" XML parse "+
+					(cis.getCount()*1000L/elapsed/1024/1024)+" MB/s");
+			state.bytes = cis.getCount();
+			state.checksum = chk.getChecksum().getValue();
+		} finally {
+			in.close();
+		}
+	}
+	
+	
+	
+	/**
+	 * Parser stage: reads items from XML and hands them off to pipeline<br>
+	 * a new item object is created for every item, and never changed after hand-off
+	 * @param xsr XML reader for catalog
+	 * @param pipe pipeline to writer stage
+	 * @param skip number of items to skip, already handed off by another parser
+	 * @throws XMLStreamException
+	 * @throws InterruptedException
+	 */
+	private void parse(XMLStreamReader xsr, ImportPipeline<T> pipe, int skip) 
+			throws XMLStreamException, InterruptedException {
+		
+		boolean isCatalog,isItem,isDoc;
+		String tagName,type;
+		Integer id;
+		int tag;
+		int items = 0;
+		T item;
+		
+		isCatalog = false;
+		isItem = false;
+		isDoc = false;
+		tag = NO_TAG;
+		type = null;
+		item = null;
+		// cursor starts on START_DOCUMENT
+		while (xsr.hasNext()) {
+			switch (xsr.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				tagName = xsr.getLocalName();
+				if (!isDoc) {
+					// i.e. a catalog file imported as an inventory
+					if (!tagName.equals(rootTag))
+						throw new XMLStreamException("[CatalogImporter] "+name+": document root is "+
+								tagName+", expected "+rootTag, xsr.getLocation());
+					isDoc = true;
+				}
+				if (isItem) {
+					id = tagIds.get(tagName);
+					tag = id == null ? NO_TAG : id;
+				}
+				else if (isCatalog && tagName.equals("ITEM")) {
+					isItem = true;
+					item = mapping.newItem();
+					type = null;
+				}
+				else if (tagName.equals(rootTag)) {
+					isCatalog = true;
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				tag = NO_TAG;
+				if (isItem && xsr.getLocalName().equals("ITEM")) {
+					isItem = false;
+					if (items++ >= skip && (itemType == null || itemType.equals(type))) 
+						pipe.put(item);
+					item = null;
+				}
+				else if (!isItem && xsr.getLocalName().equals(rootTag)) {
+					isCatalog = false;
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+				if (tag == NO_TAG || xsr.isWhiteSpace()) 
+					break;
+				// decode straight from parser buffer
+				if (tag == TYPE_TAG) {
+					type = CharParser.getTrimmed(xsr.getTextCharacters(), xsr.getTextStart(), xsr.getTextLength());
+				}
+				else {
+					mapping.setField(item, tag, xsr.getTextCharacters(), xsr.getTextStart(), xsr.getTextLength());
+				}
+				break;
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Imports a Bricklink catalog XML file, plain or compressed
+	 * @param file file to import
+	 * @param listener progress listener, may be <code>null</code>
+	 * @return number of items imported
+	 * @throws Exception
+	 */
+	public int doImport(File file, ProgressListener listener) throws Exception {
+		
+		return doImport(CatalogSource.fromFile(file), listener);
+	}
+	
+	
+	
+	/**
+	 * Imports a Bricklink catalog XML from a source, plain or compressed
+	 * @param src source to import
+	 * @param listener progress listener, may be <code>null</code>
+	 * @return number of items imported
+	 * @throws Exception
+	 */
+	public int doImport(CatalogSource src, ProgressListener listener) throws Exception {
+		
+		ImportStats stats = ImportStats.start(name);
+		
+		try {
+			return doImport(src, listener, stats);
+		} finally {
+			stats.stop();
+			lastStats = stats.snapshot();
+		}
+	}
+	
+	
+	
+	/**
+	 * Imports a catalog, updating metrics
+	 * @param src source to import
+	 * @param listener progress listener, may be <code>null</code>
+	 * @param stats catalog metrics, started
+	 * @return number of items imported
+	 * @throws Exception
+	 */
+	private int doImport(CatalogSource src, ProgressListener listener, final ImportStats stats) throws Exception {
+		
+		int i = 0,n;
+		long t;
+		int resume = 0,lastCheckpoint = 0;
+		long size,lastProgress = 0;
+		long start,elapsed;
+		final CatalogSource source = src;
+		final ParseState state = new ParseState();
+		final ImportPipeline<T> pipe;
+		ArrayList<T> batch;
+		CheckpointSink<T> ckSink = null;
+		ImportState ck;
+		
+		size = src.getSize();
+		if (skipUnchanged && src.getFile() != null && ImportState.isUnchanged(name, src.getFile())) {
+			Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+name+" unchanged since last import, skipped");
+			if (listener != null)
+				listener.progress(100);
+			return 0;
+		}
+		if (sink instanceof CheckpointSink) {
+			ckSink = (CheckpointSink<T>) sink;
+			if (src.getFile() != null && (ck = ImportState.getCheckpoint(name, src.getFile())) != null) {
+				resume = ck.getCheckpointItems();
+				lastCheckpoint = resume;
+				Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+name+" resumes interrupted import after "+
+						resume+" items ("+ck.getCheckpointOffset()+" bytes)");
+			}
+		}
+		if (listener != null)
+			listener.progress(0);
+		pipe = new ImportPipeline<T>(ImportPipeline.DEFAULT_CAPACITY);
+		batch = new ArrayList<T>(batchSize);
+		pipe.start(new Callable<Void>() {
+			
+			@Override
+			public Void call() throws Exception {
+				
+				long t = System.nanoTime();
+				try {
+					parseSource(source, pipe, state);
+				} finally {
+					stats.addParse(System.nanoTime() - t - pipe.getPutWait());
+				}
+				return null;
+			}
+		}, "CatalogImporter parser ("+name+")");
+		// sinks share the database connection and its transaction: one import at a time 
+		// writes, parser runs ahead while waiting
+		try {
+			WRITE_LOCK.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			pipe.abort();
+			throw ex;
+		}
+		// time waiting for another import isn't part of this one
+		start = System.currentTimeMillis();
+		stats.startClock();
+		try {
+			try {
+				sink.begin();
+				// writer stage
+				while (pipe.takeBatch(batch, batchSize)) {
+					t = System.nanoTime();
+					if (i < resume) {
+						// already committed by interrupted import
+						n = Math.min(batch.size(), resume - i);
+						ckSink.skip(batch.subList(0, n));
+						if (n < batch.size())
+							sink.write(batch.subList(n, batch.size()));
+					}
+					else {
+						sink.write(batch);
+					}
+					i += batch.size();
+					stats.addWrite(System.nanoTime() - t);
+					stats.setProgress(i, state.getPosition());
+					// a stream can't be resumed, so it is committed once at end
+					if (ckSink != null && src.getFile() != null && checkpointInterval > 0 && 
+							i - lastCheckpoint >= checkpointInterval) {
+						// checkpoint is committed with items
+						t = System.nanoTime();
+						ImportState.checkpoint(name, src.getFile(), i, state.getPosition());
+						ckSink.checkpoint();
+						lastCheckpoint = i;
+						stats.addCommit(System.nanoTime() - t);
+					}
+					if (listener != null && System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL) {
+						listener.progress(size <= 0 ? 0 : (int) Math.min(100, state.getPosition() * 100 / size));
+						lastProgress = System.currentTimeMillis();
+					}
+				}
+				t = System.nanoTime();
+				sink.end(i);
+				stats.addCommit(System.nanoTime() - t);
+			} catch (Exception ex) {
+				pipe.abort();
+				sink.abort();
+				throw ex;
+			}
+			// parser thread is done when pipeline ends, state is safe to read
+			ImportState.set(name, state.bytes, state.checksum);
+		} finally {
+			WRITE_LOCK.unlock();
+		}
+		stats.setProgress(i, state.bytes);
+		elapsed = System.currentTimeMillis() - start;
+		Logger.getGlobal().log(Level.INFO,"[CatalogImporter] "+i+" "+name+" in "+elapsed+" ms ("+
+				(i*1000L/Math.max(elapsed,1))+" rows/s) "+stats);
+		if (listener != null)
+			listener.progress(100);
+		return i;
+	}
+	
+}
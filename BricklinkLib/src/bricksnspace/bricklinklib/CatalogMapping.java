@@ -0,0 +1,61 @@
+
+package bricksnspace.bricklinklib;
+
+
+/**
+ * Maps tags of a Bricklink catalog item to fields of an entity<br>
+ * Used by {@link CatalogImporter} as dispatch table: each tag name is 
+ * resolved once to a tag id, that is index of tag in {@link #getTags()}.<br>
+ * A mapping must be stateless, all item data goes in item object: large files are
+ * parsed by several threads sharing the same mapping.
+ * 
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public interface CatalogMapping<T> {
+	
+	/**
+	 * @return Bricklink item type (ITEMTYPE tag) accepted by this mapping, 
+	 *   or <code>null</code> to accept all items
+	 */
+	public String getItemType();
+	
+	
+	/**
+	 * @return name of document root element accepted by this mapping, CATALOG for
+	 *   catalogs and INVENTORY for set inventories
+	 */
+	public String getRootTag();
+	
+	
+	/**
+	 * @return tag of item key, that identifies an item in catalog: a tab-delimited
+	 *   file without it is rejected, and its lines with empty key are skipped
+	 */
+	public String getKeyTag();
+	
+	
+	/**
+	 * @return tag names handled by mapping, array index is tag id
+	 */
+	public String[] getTags();
+
+	
+	/**
+	 * @return a new, empty entity with field defaults
+	 */
+	public T newItem();
+	
+	
+	/**
+	 * Sets field for a tag from parser character buffer
+	 * @param item entity to fill
+	 * @param tag tag id
+	 * @param text character buffer
+	 * @param start first char of tag text
+	 * @param len length of tag text
+	 */
+	public void setField(T item, int tag, char[] text, int start, int len);
+	
+}
@@ -0,0 +1,47 @@
+
+package bricksnspace.bricklinklib;
+
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * Destination of items read by {@link CatalogImporter}<br>
+ * All methods are called from the same (writer) thread.
+ * 
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public interface CatalogSink<T> {
+
+	/**
+	 * Prepare for import, before first item
+	 * @throws SQLException
+	 */
+	public void begin() throws SQLException;
+	
+	
+	/**
+	 * Writes a batch of items
+	 * @param items items to write, list is reused after this call
+	 * @throws SQLException
+	 */
+	public void write(List<T> items) throws SQLException;
+	
+	
+	/**
+	 * Completes import
+	 * @param count total number of items written
+	 * @throws SQLException
+	 */
+	public void end(int count) throws SQLException;
+	
+	
+	/**
+	 * Restores previous state if import fails
+	 * @throws SQLException
+	 */
+	public void abort() throws SQLException;
+	
+}
@@ -0,0 +1,224 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Input for catalog importers: a plain or compressed file, a zip entry, 
+ * a stream or a channel<br>
+ * Compressed input (gzip or zip) is detected from content and decompressed 
+ * while streaming, no temporary file is needed. Progress and checksum are 
+ * computed on raw (compressed) bytes.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class CatalogSource {
+
+	private static final int BUFSIZE = 65536;
+	
+	private final File file;
+	private final InputStream stream;
+	private final long size;
+	private final String name;
+	private final String entry;
+	
+	
+	
+	private CatalogSource(File file, InputStream stream, long size, String name, String entry) {
+		
+		this.file = file;
+		this.stream = stream;
+		this.size = size;
+		this.name = name;
+		this.entry = entry;
+	}
+	
+	
+	
+	/**
+	 * Source from a file, plain XML or compressed with gzip or zip<br>
+	 * for zip archives first entry is used
+	 * @param file file to read
+	 * @return catalog source
+	 */
+	public static CatalogSource fromFile(File file) {
+		
+		return new CatalogSource(file, null, file.length(), file.getPath(), null);
+	}
+	
+	
+	
+	/**
+	 * Source from an entry in a zip archive
+	 * @param zip zip archive
+	 * @param entry name of entry to read
+	 * @return catalog source
+	 */
+	public static CatalogSource fromZipEntry(File zip, String entry) {
+		
+		return new CatalogSource(zip, null, zip.length(), zip.getPath()+"!"+entry, entry);
+	}
+	
+	
+	
+	/**
+	 * Source from a stream, plain or compressed<br>
+	 * stream is closed at end of import
+	 * @param is stream to read
+	 * @param size stream size in bytes, for progress, or -1 if unknown
+	 * @param name source name, used in messages
+	 * @return catalog source
+	 */
+	public static CatalogSource fromStream(InputStream is, long size, String name) {
+		
+		return new CatalogSource(null, is, size, name, null);
+	}
+	
+	
+	
+	/**
+	 * Source from a byte channel, plain or compressed<br>
+	 * channel is closed at end of import
+	 * @param ch channel to read
+	 * @param size channel size in bytes, for progress, or -1 if unknown
+	 * @param name source name, used in messages
+	 * @return catalog source
+	 */
+	public static CatalogSource fromChannel(ReadableByteChannel ch, long size, String name) {
+		
+		return new CatalogSource(null, Channels.newInputStream(ch), size, name, null);
+	}
+	
+	
+	
+	/**
+	 * @return source file, or null if source is a stream
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	
+	/**
+	 * @return raw size in bytes, or -1 if unknown
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	
+	/**
+	 * @return source name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	
+	
+	/**
+	 * Checks if source is a plain (not compressed) file that can be memory mapped
+	 * @return true if source is a plain file smaller than 2GB
+	 * @throws IOException
+	 */
+	public boolean isMappable() throws IOException {
+		
+		byte[] magic = new byte[2];
+		int n;
+		
+		if (file == null || entry != null || size <= 0 || size > Integer.MAX_VALUE)
+			return false;
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			n = fis.read(magic);
+		} finally {
+			fis.close();
+		}
+		if (n == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return false;
+		if (n == 2 && magic[0] == 'P' && magic[1] == 'K')
+			return false;
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Opens raw (undecoded) source bytes<br>
+	 * a stream source can be opened only once
+	 * @return raw stream
+	 * @throws IOException
+	 */
+	public InputStream openRaw() throws IOException {
+		
+		if (file != null)
+			return new FileInputStream(file);
+		return stream;
+	}
+	
+	
+	
+	/**
+	 * Wraps raw bytes with decompression, if needed
+	 * @param raw raw source stream
+	 * @return decoded stream, plain XML
+	 * @throws IOException
+	 */
+	public InputStream decode(InputStream raw) throws IOException {
+		
+		BufferedInputStream in = new BufferedInputStream(raw, BUFSIZE);
+		byte[] magic = new byte[4];
+		int n = 0,r;
+		
+		in.mark(magic.length);
+		while (n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0)
+			n += r;
+		in.reset();
+		if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			return new GZIPInputStream(in, BUFSIZE);
+		}
+		if (n == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+			ZipInputStream zis = new ZipInputStream(in);
+			ZipEntry ze;
+			while ((ze = zis.getNextEntry()) != null) {
+				if (!ze.isDirectory() && (entry == null || ze.getName().equals(entry)))
+					return zis;
+			}
+			zis.close();
+			throw new IOException("[CatalogSource] no "+(entry == null ? "entry" : "entry '"+entry+"'")+" in "+name);
+		}
+		return in;
+	}
+	
+}
@@ -0,0 +1,180 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+
+/**
+ * Number and string decoding straight from parser character buffer<br>
+ * Avoids intermediate String objects for numeric catalog fields.<br>
+ * Malformed numbers decode as 0, like catalog importers always did.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class CharParser {
+	
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+	
+	
+	private CharParser() {
+		// private unreachable constructor
+	}
+	
+	
+	
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	
+	
+	/**
+	 * Decode an integer from a character buffer, ignoring surrounding white space
+	 * @param buf buffer
+	 * @param start first char
+	 * @param len number of chars
+	 * @return decoded value, or 0 if chars aren't a valid integer
+	 */
+	public static int parseInt(char[] buf, int start, int len) {
+		
+		int end = start + len;
+		long v = 0;
+		boolean neg = false;
+		int digits = 0;
+		
+		while (start < end && isSpace(buf[start]))
+			start++;
+		while (end > start && isSpace(buf[end-1]))
+			end--;
+		if (start < end && (buf[start] == '-' || buf[start] == '+')) {
+			neg = buf[start] == '-';
+			start++;
+		}
+		for (int i = start; i < end; i++) {
+			char c = buf[i];
+			if (c < '0' || c > '9')
+				return 0;
+			v = v * 10 + (c - '0');
+			if (++digits > 10)
+				return 0;
+		}
+		if (digits == 0)
+			return 0;
+		v = neg ? -v : v;
+		if (v > Integer.MAX_VALUE || v < Integer.MIN_VALUE)
+			return 0;
+		return (int) v;
+	}
+	
+	
+	
+	/**
+	 * Decode a decimal number from a character buffer, ignoring surrounding white space<br>
+	 * Accepts plain decimal notation, as used in Bricklink catalogs. Numbers with more 
+	 * than 18 significant digits or exponent are delegated to {@link Float#parseFloat(String)}
+	 * @param buf buffer
+	 * @param start first char
+	 * @param len number of chars
+	 * @return decoded value, or 0 if chars aren't a valid number
+	 */
+	public static float parseFloat(char[] buf, int start, int len) {
+		
+		int end = start + len;
+		int first;
+		long mant = 0;
+		int digits = 0;
+		int frac = 0;
+		boolean neg = false;
+		boolean dot = false;
+		
+		while (start < end && isSpace(buf[start]))
+			start++;
+		while (end > start && isSpace(buf[end-1]))
+			end--;
+		// slow path parses sign too
+		first = start;
+		if (start < end && (buf[start] == '-' || buf[start] == '+')) {
+			neg = buf[start] == '-';
+			start++;
+		}
+		for (int i = start; i < end; i++) {
+			char c = buf[i];
+			if (c == '.' && !dot) {
+				dot = true;
+			}
+			else if (c >= '0' && c <= '9') {
+				if (digits == 18) 
+					return slowFloat(buf, first, end);
+				mant = mant * 10 + (c - '0');
+				if (mant != 0)
+					digits++;
+				if (dot)
+					frac++;
+			}
+			else if (c == 'e' || c == 'E') {
+				return slowFloat(buf, first, end);
+			}
+			else {
+				return 0.0f;
+			}
+		}
+		if (end - start == (dot ? 1 : 0))
+			return 0.0f;
+		double v = frac < POW10.length ? mant / POW10[frac] : mant / Math.pow(10, frac);
+		return (float) (neg ? -v : v);
+	}
+	
+	
+	
+	private static float slowFloat(char[] buf, int start, int end) {
+		
+		try {
+			return Float.parseFloat(new String(buf, start, end - start));
+		} catch (NumberFormatException e) {
+			return 0.0f;
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns a string from character buffer, without surrounding white space
+	 * @param buf buffer
+	 * @param start first char
+	 * @param len number of chars
+	 * @return trimmed string
+	 */
+	public static String getTrimmed(char[] buf, int start, int len) {
+		
+		int end = start + len;
+		
+		while (start < end && isSpace(buf[start]))
+			start++;
+		while (end > start && isSpace(buf[end-1]))
+			end--;
+		return new String(buf, start, end - start);
+	}
+	
+}
@@ -0,0 +1,35 @@
+package bricksnspace.bricklinklib;
+
+import java.sql.SQLException;
+import java.util.List;
+
+
+/**
+ * Destination that commits import in checkpoints<br>
+ * {@link CatalogImporter} calls {@link #checkpoint()} every few items and records
+ * checkpoint in {@link ImportState}, in the same transaction. If import is interrupted,
+ * next import of the same file resumes: items up to last checkpoint are already in
+ * database and are handed to {@link #skip(List)} instead of {@link #write(List)}.<br>
+ * Items not seen are marked as deleted only at end of a complete import.
+ *
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public interface CheckpointSink<T> extends CatalogSink<T> {
+
+	/**
+	 * Commits all items written so far
+	 * @throws SQLException
+	 */
+	public void checkpoint() throws SQLException;
+
+
+	/**
+	 * Tracks items committed by an interrupted import, without writing them again
+	 * @param items items already in database, list is reused after this call
+	 * @throws SQLException
+	 */
+	public void skip(List<T> items) throws SQLException;
+
+}
@@ -0,0 +1,206 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Parallel parser for memory mapped catalog files<br>
+ * Document is split at &lt;ITEM&gt; boundaries into chunks, parsed by a
+ * {@link FastCatalogParser} each on a {@link ForkJoinPool}. Chunk results are handed
+ * off to pipeline in document order, so writer stage sees items as a sequential parse
+ * would. Only a limited number of chunks is in flight, to bound memory use.<br>
+ * Small documents, or parallelism of 1, are parsed sequentially.
+ *
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public class ChunkedCatalogParser<T> {
+
+	/** minimum chunk size, in bytes */
+	public static final int MIN_CHUNK = 1024 * 1024;
+	/** chunks in flight for every worker thread */
+	private static final int CHUNKS_PER_WORKER = 2;
+	private static final byte[] ITEM = "<ITEM>".getBytes(StandardCharsets.US_ASCII);
+
+	private final CatalogMapping<T> mapping;
+	private final int parallelism;
+	private volatile int pos = 0;
+	private int items = 0;
+
+
+	/**
+	 * Result of a chunk parse
+	 */
+	private static class Chunk<T> {
+
+		final int end;
+		final List<T> out = new ArrayList<T>();
+		int items;
+		boolean ok;
+
+		Chunk(int end) {
+			this.end = end;
+		}
+	}
+
+
+
+	/**
+	 * @param mapping tag to field mapping, shared by all worker threads
+	 * @param parallelism number of worker threads
+	 */
+	public ChunkedCatalogParser(CatalogMapping<T> mapping, int parallelism) {
+
+		if (parallelism < 1)
+			throw new IllegalArgumentException("[ChunkedCatalogParser] parallelism must be at least 1");
+		this.mapping = mapping;
+		this.parallelism = parallelism;
+	}
+
+
+
+	/**
+	 * @return number of complete items handed off or filtered, in document order
+	 */
+	public int getItems() {
+		return items;
+	}
+
+
+	/**
+	 * @return position in document of items handed off so far, in bytes
+	 */
+	public int getPosition() {
+		return pos;
+	}
+
+
+
+	/**
+	 * Finds next item start tag
+	 * @return position of &lt;ITEM&gt;, or limit if none
+	 */
+	private static int nextItem(ByteBuffer buf, int from) {
+
+		int lim = buf.limit() - ITEM.length;
+
+		for (int p = from; p <= lim; p++) {
+			if (buf.get(p) != '<')
+				continue;
+			int i = 1;
+			while (i < ITEM.length && buf.get(p + i) == ITEM[i])
+				i++;
+			if (i == ITEM.length)
+				return p;
+		}
+		return buf.limit();
+	}
+
+
+
+	/**
+	 * Parses a catalog, handing off items to pipeline in document order
+	 * @param buffer whole document, from position 0 to limit
+	 * @param pipe pipeline to writer stage
+	 * @return true if whole document is parsed, false if document doesn't match
+	 *   expected shape, and parse must continue with a full XML parser,
+	 *   skipping {@link #getItems()} items
+	 * @throws InterruptedException
+	 * @throws ExecutionException if a worker fails
+	 */
+	public boolean parse(ByteBuffer buffer, ImportPipeline<T> pipe)
+			throws InterruptedException, ExecutionException {
+
+		final ByteBuffer buf = buffer;
+		final int size = buffer.limit();
+		int start,end,chunkSize;
+		FastCatalogParser<T> first;
+		ForkJoinPool pool;
+		ArrayDeque<ForkJoinTask<Chunk<T>>> inFlight;
+		Chunk<T> c;
+
+		items = 0;
+		chunkSize = Math.max(MIN_CHUNK, size / (parallelism * CHUNKS_PER_WORKER * 4));
+		if (parallelism == 1 || size < 2 * chunkSize) {
+			first = new FastCatalogParser<T>(mapping);
+			try {
+				return first.parse(buf, pipe);
+			} finally {
+				items = first.getItems();
+				pos = first.getPosition();
+			}
+		}
+		first = new FastCatalogParser<T>(mapping);
+		start = first.header(buf);
+		if (start < 0)
+			return false;
+		pool = new ForkJoinPool(parallelism);
+		inFlight = new ArrayDeque<ForkJoinTask<Chunk<T>>>();
+		try {
+			while (start < size || !inFlight.isEmpty()) {
+				// keep workers busy
+				while (start < size && inFlight.size() < parallelism * CHUNKS_PER_WORKER) {
+					end = nextItem(buf, Math.min(start + chunkSize, size));
+					final int from = start;
+					final int to = end;
+					inFlight.add(pool.submit(new Callable<Chunk<T>>() {
+
+						@Override
+						public Chunk<T> call() {
+
+							FastCatalogParser<T> fp = new FastCatalogParser<T>(mapping);
+							Chunk<T> ch = new Chunk<T>(to);
+							ch.ok = fp.parseChunk(buf.duplicate(), from, to, to == size, ch.out);
+							ch.items = fp.getItems();
+							return ch;
+						}
+					}));
+					start = end;
+				}
+				// hand off in document order
+				c = inFlight.poll().get();
+				for (T item : c.out) {
+					pipe.put(item);
+				}
+				items += c.items;
+				if (!c.ok)
+					return false;
+				pos = c.end;
+			}
+			return true;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
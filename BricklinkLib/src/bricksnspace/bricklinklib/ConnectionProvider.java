@@ -0,0 +1,24 @@
+package bricksnspace.bricklinklib;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+
+/**
+ * Source of extra database connections, for imports with parallel writers<br>
+ * Connections must reach the same database as {@link BricklinkLib} connector,
+ * for H2 an embedded database in MVStore mode with multi-threaded access, or a
+ * server database. Connections are closed by importer when import ends.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface ConnectionProvider {
+
+	/**
+	 * @return a new connection to library database
+	 * @throws SQLException
+	 */
+	public Connection getConnection() throws SQLException;
+
+}
@@ -0,0 +1,104 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+
+/**
+ * 64 bit FNV-1a hash of entity fields<br>
+ * Used to detect catalog rows that changed since last import. 
+ * Start with {@link #INIT} and chain calls for every field.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class ContentHash {
+
+	/** initial hash value */
+	public static final long INIT = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+	
+	
+	private ContentHash() {
+		// private unreachable constructor
+	}
+	
+	
+	/**
+	 * Adds a string to hash, <code>null</code> is different from empty string
+	 * @param h current hash
+	 * @param s string to add
+	 * @return new hash
+	 */
+	public static long add(long h, String s) {
+		
+		if (s == null)
+			return (h ^ 0xff) * PRIME;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * PRIME;
+			h = (h ^ (c >>> 8)) * PRIME;
+		}
+		// field separator
+		return (h ^ 0xfe) * PRIME;
+	}
+	
+	
+	/**
+	 * Adds an integer to hash
+	 * @param h current hash
+	 * @param v value to add
+	 * @return new hash
+	 */
+	public static long add(long h, int v) {
+		
+		for (int i = 0; i < 4; i++) {
+			h = (h ^ (v & 0xff)) * PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+	
+	
+	/**
+	 * Adds a float to hash
+	 * @param h current hash
+	 * @param v value to add
+	 * @return new hash
+	 */
+	public static long add(long h, float v) {
+		
+		return add(h, Float.floatToIntBits(v));
+	}
+	
+	
+	/**
+	 * Adds a boolean to hash
+	 * @param h current hash
+	 * @param v value to add
+	 * @return new hash
+	 */
+	public static long add(long h, boolean v) {
+		
+		return (h ^ (v ? 1 : 0)) * PRIME;
+	}
+	
+}
@@ -0,0 +1,112 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Input stream that counts bytes read from underlying stream<br>
+ * Used by importers to compute progress without reading input twice
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private volatile long count = 0;
+	private long mark = 0;
+	
+	
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+
+	/**
+	 * @return bytes read so far
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	
+	/**
+	 * Returns progress as percent of total size
+	 * @param total expected stream size in bytes
+	 * @return percent of bytes read, from 0 to 100
+	 */
+	public int getPercent(long total) {
+		
+		if (total <= 0)
+			return 0;
+		return (int) Math.min(100, count * 100 / total);
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		
+		int b = in.read();
+		if (b != -1)
+			count++;
+		return b;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		
+		int n = in.read(b, off, len);
+		if (n > 0)
+			count += n;
+		return n;
+	}
+
+
+	@Override
+	public long skip(long n) throws IOException {
+		
+		long s = in.skip(n);
+		count += s;
+		return s;
+	}
+
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		
+		in.mark(readlimit);
+		mark = count;
+	}
+
+
+	@Override
+	public synchronized void reset() throws IOException {
+		
+		in.reset();
+		count = mark;
+	}
+
+}
@@ -0,0 +1,229 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Repairs double escaped numeric entities in Bricklink XML exports<br>
+ * XXX: remove when BrickLink fixes XML export for special char (entities)<br>
+ * char like '(' or '"' are coded in file as: &amp;amp;#40; &amp;amp;#34;
+ * XML parser handles "&amp;amp;" -> '&amp;' but leaves "#40;" in text.<br>
+ * This stream rewrites "&amp;amp;#NN;" to "&amp;#NN;" in a single pass, before XML parser,
+ * so parser decodes it as a normal character reference in every field.
+ * Only references to valid XML characters are rewritten.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class EntityRepairInputStream extends FilterInputStream {
+
+	/** "&amp;" + "#x" + up to 6 hex digits + ";" */
+	private static final int MAX_SEQ = 15;
+	private static final int AMP_LEN = 4;		// "amp;"
+	
+	private final byte[] buf = new byte[8192];
+	private int pos = 0;
+	private int lim = 0;
+	private boolean eof = false;
+	
+	
+	public EntityRepairInputStream(InputStream in) {
+		super(in);
+	}
+	
+	
+	
+	/**
+	 * Ensure at least <code>need</code> bytes are available in buffer, unless end of stream
+	 * @return true if at least one byte is available
+	 * @throws IOException 
+	 */
+	private boolean fill(int need) throws IOException {
+		
+		int n;
+		
+		if (lim - pos >= need || eof)
+			return lim > pos;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, lim - pos);
+			lim -= pos;
+			pos = 0;
+		}
+		while (lim < need && !eof) {
+			n = in.read(buf, lim, buf.length - lim);
+			if (n < 0) 
+				eof = true;
+			else
+				lim += n;
+		}
+		return lim > pos;
+	}
+	
+	
+	
+	private static int hexValue(byte c) {
+		
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+	
+	
+	
+	/**
+	 * Checks if buffer at current position ('&amp;') starts a double escaped character reference 
+	 * @return true if "amp;" after '&amp;' must be dropped
+	 */
+	private boolean isEscapedRef() {
+		
+		int i = pos + 1;
+		int code = 0;
+		int digits = 0;
+		int radix = 10;
+		int d;
+		
+		if (lim - pos < AMP_LEN + 4)		// at least "&amp;#N;"
+			return false;
+		if (buf[i] != 'a' || buf[i+1] != 'm' || buf[i+2] != 'p' || buf[i+3] != ';' || buf[i+4] != '#')
+			return false;
+		i += 5;
+		if (buf[i] == 'x') {
+			radix = 16;
+			i++;
+		}
+		for (; i < lim && digits < 7; i++) {
+			if (buf[i] == ';') {
+				if (digits == 0)
+					return false;
+				// only valid XML chars, or parser will fail
+				return code == 0x9 || code == 0xa || code == 0xd || 
+						(code >= 0x20 && code <= 0xd7ff) || 
+						(code >= 0xe000 && code <= 0xfffd) || 
+						(code >= 0x10000 && code <= 0x10ffff);
+			}
+			d = hexValue(buf[i]);
+			if (d < 0 || d >= radix)
+				return false;
+			code = code * radix + d;
+			digits++;
+		}
+		return false;
+	}
+	
+	
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		
+		int n = 0;
+		int end,max;
+		
+		if (len == 0)
+			return 0;
+		while (n < len) {
+			if (pos >= lim) {
+				// don't block if something is ready
+				if (n > 0 && in.available() <= 0) 
+					break;
+				if (!fill(1))
+					break;
+			}
+			if (buf[pos] != '&') {
+				// copy plain bytes up to next '&'
+				end = pos;
+				max = Math.min(lim, pos + len - n);
+				while (end < max && buf[end] != '&')
+					end++;
+				System.arraycopy(buf, pos, b, off + n, end - pos);
+				n += end - pos;
+				pos = end;
+				continue;
+			}
+			fill(MAX_SEQ);
+			b[off + n++] = '&';
+			if (isEscapedRef()) 
+				pos += AMP_LEN;
+			pos++;
+		}
+		return (n == 0) ? -1 : n;
+	}
+	
+	
+	
+	@Override
+	public int read() throws IOException {
+		
+		byte[] b = new byte[1];
+		if (read(b, 0, 1) < 0)
+			return -1;
+		return b[0] & 0xff;
+	}
+	
+	
+	
+	@Override
+	public long skip(long n) throws IOException {
+		
+		byte[] b = new byte[(int) Math.min(n, 4096)];
+		long s = 0;
+		int r;
+		
+		while (s < n && (r = read(b, 0, (int) Math.min(b.length, n - s))) > 0)
+			s += r;
+		return s;
+	}
+	
+	
+	
+	@Override
+	public int available() throws IOException {
+		return lim - pos;
+	}
+
+	
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		;
+	}
+	
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("[EntityRepairInputStream] mark/reset not supported");
+	}
+	
+}
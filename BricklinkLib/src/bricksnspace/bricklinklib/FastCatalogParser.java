@@ -0,0 +1,638 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+/**
+ * Byte level parser for plain Bricklink catalog XML, used on memory mapped files<br>
+ * Accepts only the flat catalog shape: optional UTF-8 declaration,
+ * &lt;CATALOG&gt;&lt;ITEM&gt;&lt;TAG&gt;value&lt;/TAG&gt;...&lt;/ITEM&gt;...&lt;/CATALOG&gt;
+ * with no attributes, comments, CDATA or nested elements in items. Set inventories
+ * have the same shape, with &lt;INVENTORY&gt; as root: root must be the one of mapping 
+ * (see {@link CatalogMapping#getRootTag()}).<br>
+ * Field text is decoded from UTF-8 bytes into a reused char buffer and handed to
+ * {@link CatalogMapping#setField(Object, int, char[], int, int)}, so no intermediate
+ * String is created. Predefined entities, character references and double escaped
+ * references (see {@link EntityRepairInputStream}) are decoded.<br>
+ * When document doesn't match expected shape parse stops, and caller continues with
+ * a full XML parser, skipping the {@link #getItems()} items already handed off.<br>
+ * An instance is used by one thread at a time; parallel parsing uses an instance
+ * per chunk, see {@link ChunkedCatalogParser}.
+ *
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public class FastCatalogParser<T> {
+
+	/** tag id for tags not in mapping */
+	private static final int NO_TAG = -1;
+	/** tag id for item type tag */
+	private static final int TYPE_TAG = -2;
+
+	private static final byte[] ITEM = ascii("<ITEM>");
+	private static final byte[] ITEM_END = ascii("</ITEM>");
+	private static final byte[] DECL = ascii("<?xml");
+	private static final byte[] ITEMTYPE = ascii("ITEMTYPE");
+	private static final byte[] AMP = ascii("amp;");
+	private static final byte[] LT = ascii("lt;");
+	private static final byte[] GT = ascii("gt;");
+	private static final byte[] QUOT = ascii("quot;");
+	private static final byte[] APOS = ascii("apos;");
+
+	private final CatalogMapping<T> mapping;
+	private final byte[][] tagNames;
+	private final char[] itemType;
+	/** root start and end tags */
+	private final byte[] rootTag,rootEndTag;
+	private char[] text = new char[256];
+	private ByteBuffer buf;
+	private int lim;
+	private volatile int pos;
+	private int items;
+	/** last parsed item */
+	private T current;
+	/** end of last decoded character reference */
+	private int refEnd;
+
+
+	/**
+	 * @param mapping tag to field mapping
+	 */
+	public FastCatalogParser(CatalogMapping<T> mapping) {
+
+		String[] tags = mapping.getTags();
+
+		this.mapping = mapping;
+		tagNames = new byte[tags.length][];
+		for (int i = 0; i < tags.length; i++) {
+			tagNames[i] = ascii(tags[i]);
+		}
+		itemType = mapping.getItemType() == null ? null : mapping.getItemType().toCharArray();
+		rootTag = ascii("<"+mapping.getRootTag()+">");
+		rootEndTag = ascii("</"+mapping.getRootTag()+">");
+	}
+
+
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+
+
+	/**
+	 * @return number of complete items parsed, including items of other types
+	 */
+	public int getItems() {
+		return items;
+	}
+
+
+	/**
+	 * @return current position in buffer, in bytes
+	 */
+	public int getPosition() {
+		return pos;
+	}
+
+
+
+	/**
+	 * Parses a catalog, handing off items to pipeline
+	 * @param buffer whole document, from position 0 to limit
+	 * @param pipe pipeline to writer stage
+	 * @return true if whole document is parsed, false if document doesn't match
+	 *   expected shape, and parse must continue with a full XML parser
+	 * @throws InterruptedException
+	 */
+	public boolean parse(ByteBuffer buffer, ImportPipeline<T> pipe) throws InterruptedException {
+
+		int p;
+
+		items = 0;
+		p = header(buffer);
+		if (p < 0)
+			return false;
+		while (true) {
+			pos = p;
+			p = skipSpace(p);
+			if (rootEnd(p) > 0)
+				return trailer(p);
+			p = item(p);
+			if (p < 0)
+				return false;
+			items++;
+			if (current != null)
+				pipe.put(current);
+		}
+	}
+
+
+
+	/**
+	 * Parses a chunk of items, for parallel parsing<br>
+	 * Chunk starts at an &lt;ITEM&gt; tag; all chunks but last end where next chunk starts, 
+	 * last chunk ends with &lt;/CATALOG&gt; and document end.
+	 * @param buffer whole document
+	 * @param from first byte of chunk
+	 * @param to first byte after chunk
+	 * @param last true if this is last chunk in document
+	 * @param out receives items of mapping type
+	 * @return true if chunk is parsed, false if chunk doesn't match expected shape; 
+	 *   items parsed before mismatch are in <code>out</code> and counted in {@link #getItems()}
+	 */
+	public boolean parseChunk(ByteBuffer buffer, int from, int to, boolean last, List<T> out) {
+
+		int p = from;
+
+		buf = buffer;
+		lim = buffer.limit();
+		items = 0;
+		while (true) {
+			pos = p;
+			p = skipSpace(p);
+			if (last && rootEnd(p) > 0)
+				return trailer(p);
+			if (!last && p >= to)
+				return p == to;
+			p = item(p);
+			if (p < 0 || (!last && p > to))
+				return false;
+			items++;
+			if (current != null)
+				out.add(current);
+		}
+	}
+
+
+
+	/**
+	 * Checks document start, up to catalog start tag
+	 * @param buffer whole document, from position 0 to limit
+	 * @return position after root start tag, or -1 if document doesn't start with mapping root
+	 */
+	public int header(ByteBuffer buffer) {
+
+		int p;
+
+		buf = buffer;
+		lim = buffer.limit();
+		p = 0;
+		// UTF-8 byte order mark
+		if (lim >= 3 && (buf.get(0) & 0xff) == 0xef && (buf.get(1) & 0xff) == 0xbb && (buf.get(2) & 0xff) == 0xbf)
+			p = 3;
+		p = skipSpace(p);
+		if (startsWith(p, DECL)) {
+			p = declaration(p);
+			if (p < 0)
+				return -1;
+			p = skipSpace(p);
+		}
+		if (startsWith(p, rootTag))
+			return p + rootTag.length;
+		return -1;
+	}
+
+
+
+	/**
+	 * @param p position to check
+	 * @return length of root end tag at <code>p</code>, or 0 if there isn't one
+	 */
+	private int rootEnd(int p) {
+
+		return startsWith(p, rootEndTag) ? rootEndTag.length : 0;
+	}
+
+
+
+	/**
+	 * Checks document end: only white space after catalog end tag
+	 * @param p position of root end tag
+	 * @return true if document ends correctly
+	 */
+	private boolean trailer(int p) {
+
+		p = skipSpace(p + rootEnd(p));
+		pos = p;
+		return p == lim;
+	}
+
+
+
+	/**
+	 * Parses an item at <code>p</code>, result is in <code>current</code>, 
+	 * or <code>null</code> if item is of another type
+	 * @param p position of &lt;ITEM&gt; tag
+	 * @return position after item end tag, or -1 if item doesn't match expected shape
+	 */
+	private int item(int p) {
+
+		T item;
+		boolean typeOk;
+		int tag,nameStart,nameEnd,textStart,textEnd,len;
+
+		current = null;
+		if (!startsWith(p, ITEM))
+			return -1;
+		p += ITEM.length;
+		item = mapping.newItem();
+		typeOk = itemType == null;
+		while (true) {
+			p = skipSpace(p);
+			if (startsWith(p, ITEM_END)) {
+				p += ITEM_END.length;
+				break;
+			}
+			// <TAG>text</TAG> or <TAG/>
+			if (p >= lim || buf.get(p) != '<')
+				return -1;
+			nameStart = ++p;
+			while (p < lim && isNameByte(buf.get(p)))
+				p++;
+			nameEnd = p;
+			if (nameEnd == nameStart || p >= lim)
+				return -1;
+			if (buf.get(p) == '/') {
+				if (p + 1 >= lim || buf.get(p+1) != '>')
+					return -1;
+				p += 2;
+				continue;
+			}
+			if (buf.get(p) != '>')
+				return -1;
+			textStart = ++p;
+			while (p < lim && buf.get(p) != '<')
+				p++;
+			textEnd = p;
+			// matching end tag
+			if (p + nameEnd - nameStart + 3 > lim || buf.get(p+1) != '/')
+				return -1;
+			p += 2;
+			for (int i = nameStart; i < nameEnd; i++, p++) {
+				if (buf.get(i) != buf.get(p))
+					return -1;
+			}
+			if (buf.get(p) != '>')
+				return -1;
+			p++;
+			tag = tagId(nameStart, nameEnd);
+			if (tag == NO_TAG)
+				continue;
+			len = decode(textStart, textEnd);
+			if (len < 0)
+				return -1;
+			if (isBlank(len))
+				continue;
+			if (tag == TYPE_TAG)
+				typeOk = isItemType(len);
+			else
+				mapping.setField(item, tag, text, 0, len);
+		}
+		if (typeOk)
+			current = item;
+		return p;
+	}
+
+
+
+	/**
+	 * Checks XML declaration, only UTF-8 or ASCII encoding is accepted
+	 * @return position after declaration, or -1 if not accepted
+	 */
+	private int declaration(int p) {
+
+		int end = p;
+		String decl;
+		int i;
+
+		while (end + 1 < lim && !(buf.get(end) == '?' && buf.get(end+1) == '>'))
+			end++;
+		if (end + 1 >= lim)
+			return -1;
+		decl = decodeAscii(p, end);
+		i = decl.indexOf("encoding");
+		if (i >= 0) {
+			decl = decl.substring(i + 8).replace(" ", "").replace("'", "\"").toUpperCase();
+			if (!decl.startsWith("=\"UTF-8\"") && !decl.startsWith("=\"US-ASCII\""))
+				return -1;
+		}
+		return end + 2;
+	}
+
+
+
+	private String decodeAscii(int from, int to) {
+
+		StringBuilder sb = new StringBuilder(to - from);
+
+		for (int i = from; i < to; i++) {
+			sb.append((char) (buf.get(i) & 0x7f));
+		}
+		return sb.toString();
+	}
+
+
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+
+
+	private static boolean isNameByte(byte c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+				c == '_' || c == '-' || c == '.';
+	}
+
+
+
+	private int skipSpace(int p) {
+
+		while (p < lim && isSpace(buf.get(p)))
+			p++;
+		return p;
+	}
+
+
+
+	private boolean startsWith(int p, byte[] s) {
+
+		if (p + s.length > lim)
+			return false;
+		for (int i = 0; i < s.length; i++) {
+			if (buf.get(p + i) != s[i])
+				return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Looks up tag name in mapping tags
+	 * @return tag index, TYPE_TAG for item type or NO_TAG if not in mapping
+	 */
+	private int tagId(int start, int end) {
+
+		int len = end - start;
+
+		for (int t = 0; t < tagNames.length; t++) {
+			if (tagNames[t].length == len && startsWith(start, tagNames[t]))
+				return t;
+		}
+		if (itemType != null && len == 8 && startsWith(start, ITEMTYPE))
+			return TYPE_TAG;
+		return NO_TAG;
+	}
+
+
+
+	private boolean isBlank(int len) {
+
+		for (int i = 0; i < len; i++) {
+			if (!isSpace(text[i]))
+				return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Compares trimmed text with item type
+	 */
+	private boolean isItemType(int len) {
+
+		int start = 0;
+
+		while (start < len && isSpace(text[start]))
+			start++;
+		while (len > start && isSpace(text[len-1]))
+			len--;
+		if (len - start != itemType.length)
+			return false;
+		for (int i = 0; i < itemType.length; i++) {
+			if (text[start + i] != itemType[i])
+				return false;
+		}
+		return true;
+	}
+
+
+
+	private void append(int at, char c) {
+
+		if (at >= text.length) {
+			char[] t = new char[text.length * 2];
+			System.arraycopy(text, 0, t, 0, text.length);
+			text = t;
+		}
+		text[at] = c;
+	}
+
+
+
+	private static boolean isXmlChar(int code) {
+		return code == 0x9 || code == 0xa || code == 0xd ||
+				(code >= 0x20 && code <= 0xd7ff) ||
+				(code >= 0xe000 && code <= 0xfffd) ||
+				(code >= 0x10000 && code <= 0x10ffff);
+	}
+
+
+
+	/**
+	 * Appends a code point as one or two chars
+	 * @return new length
+	 */
+	private int appendCode(int n, int code) {
+
+		if (code >= 0x10000) {
+			append(n++, Character.highSurrogate(code));
+			append(n++, Character.lowSurrogate(code));
+		}
+		else {
+			append(n++, (char) code);
+		}
+		return n;
+	}
+
+
+
+	/**
+	 * Decodes a character reference "#NN;" or "#xNN;" starting at <code>p</code>
+	 * @return code point, or -1 if not a valid reference. Position after reference is in <code>refEnd</code>
+	 */
+	private int charRef(int p, int end) {
+
+		int radix = 10;
+		int code = 0;
+		int digits = 0;
+		int d;
+		byte c;
+
+		if (p >= end || buf.get(p) != '#')
+			return -1;
+		p++;
+		if (p < end && buf.get(p) == 'x') {
+			radix = 16;
+			p++;
+		}
+		for (; p < end && digits < 7; p++) {
+			c = buf.get(p);
+			if (c == ';') {
+				if (digits == 0 || !isXmlChar(code))
+					return -1;
+				refEnd = p + 1;
+				return code;
+			}
+			d = Character.digit(c, radix);
+			if (d < 0)
+				return -1;
+			code = code * radix + d;
+			digits++;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * Decodes field text from UTF-8 bytes into char buffer,
+	 * resolving entities and normalizing line ends
+	 * @param p first byte
+	 * @param end byte after last
+	 * @return number of chars decoded, or -1 if text can't be decoded here
+	 */
+	private int decode(int p, int end) {
+
+		int n = 0;
+		int b,code,need,lo,hi;
+
+		while (p < end) {
+			b = buf.get(p) & 0xff;
+			if (b < 0x80) {
+				if (b == '&') {
+					p++;
+					if (startsWith(p, AMP)) {
+						p += AMP.length;
+						// double escaped reference "&amp;#NN;"
+						code = charRef(p, end);
+						if (code >= 0) {
+							n = appendCode(n, code);
+							p = refEnd;
+						}
+						else {
+							append(n++, '&');
+						}
+					}
+					else if (startsWith(p, LT)) {
+						append(n++, '<');
+						p += LT.length;
+					}
+					else if (startsWith(p, GT)) {
+						append(n++, '>');
+						p += GT.length;
+					}
+					else if (startsWith(p, QUOT)) {
+						append(n++, '"');
+						p += QUOT.length;
+					}
+					else if (startsWith(p, APOS)) {
+						append(n++, '\'');
+						p += APOS.length;
+					}
+					else {
+						code = charRef(p, end);
+						if (code < 0)
+							return -1;
+						n = appendCode(n, code);
+						p = refEnd;
+					}
+					continue;
+				}
+				if (b == '\r') {
+					// XML line end normalization
+					append(n++, '\n');
+					p++;
+					if (p < end && buf.get(p) == '\n')
+						p++;
+					continue;
+				}
+				append(n++, (char) b);
+				p++;
+				continue;
+			}
+			// multi byte UTF-8 sequence, with allowed range for second byte
+			// (RFC 3629): ranges exclude overlong forms, surrogates and code points over 0x10ffff
+			lo = 0x80;
+			hi = 0xbf;
+			if (b >= 0xf0 && b <= 0xf4) {
+				need = 3;
+				code = b & 0x07;
+				if (b == 0xf0)
+					lo = 0x90;
+				else if (b == 0xf4)
+					hi = 0x8f;
+			}
+			else if (b >= 0xe0 && b <= 0xef) {
+				need = 2;
+				code = b & 0x0f;
+				if (b == 0xe0)
+					lo = 0xa0;
+				else if (b == 0xed)
+					hi = 0x9f;
+			}
+			else if (b >= 0xc2 && b <= 0xdf) {
+				need = 1;
+				code = b & 0x1f;
+			}
+			else {
+				// invalid lead byte, left to XML parser
+				return -1;
+			}
+			if (p + need >= end)
+				return -1;
+			b = buf.get(p + 1) & 0xff;
+			if (b < lo || b > hi)
+				return -1;
+			for (int i = 1; i <= need; i++) {
+				b = buf.get(p + i) & 0xff;
+				if ((b & 0xc0) != 0x80)
+					return -1;
+				code = (code << 6) | (b & 0x3f);
+			}
+			if (!isXmlChar(code))
+				return -1;
+			n = appendCode(n, code);
+			p += need + 1;
+		}
+		return n;
+	}
+
+}
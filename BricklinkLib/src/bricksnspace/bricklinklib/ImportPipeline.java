@@ -0,0 +1,177 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+
+/**
+ * Two stage import pipeline: a parser thread fills a bounded queue, 
+ * the writer (caller thread) drains it in batches<br>
+ * Items put in queue must not be modified by parser after hand-off.<br>
+ * A full queue blocks parser (backpressure), a parser error is re-thrown 
+ * to writer, {@link #abort()} stops parser if writer fails.
+ * 
+ * @author Mario Pascucci
+ *
+ * @param <T> type of items passed from parser to writer
+ */
+public class ImportPipeline<T> {
+
+	/** default number of items queued between parser and writer */
+	public static final int DEFAULT_CAPACITY = 2000;
+	
+	/** end of input marker */
+	private static final Object END = new Object();
+	
+	private final BlockingQueue<Object> queue;
+	private volatile Throwable parseError = null;
+	private volatile boolean aborted = false;
+	private volatile long putWait = 0;
+	private boolean done = false;
+	private Thread parser = null;
+	
+	
+	
+	public ImportPipeline(int capacity) {
+		
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+	
+	
+	
+	/**
+	 * Starts parser stage in a new thread
+	 * @param task parser task, feeds pipeline with {@link #put(Object)}
+	 * @param name thread name
+	 */
+	public void start(final Callable<?> task, String name) {
+		
+		parser = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					task.call();
+				} catch (Throwable t) {
+					if (!aborted)
+						parseError = t;
+				} finally {
+					if (!aborted) {
+						try {
+							queue.put(END);
+						} catch (InterruptedException e) {
+							;
+						}
+					}
+				}
+			}
+		}, name);
+		parser.setDaemon(true);
+		parser.start();
+	}
+	
+	
+	
+	/**
+	 * Hands off an item to writer stage, waits if queue is full
+	 * @param item item to write, must not be changed after this call
+	 * @throws InterruptedException
+	 * @throws CancellationException if pipeline was aborted
+	 */
+	public void put(T item) throws InterruptedException {
+		
+		long t;
+		
+		if (aborted)
+			throw new CancellationException("[ImportPipeline] import aborted");
+		if (!queue.offer(item)) {
+			// writer is slower than parser
+			t = System.nanoTime();
+			queue.put(item);
+			putWait += System.nanoTime() - t;
+		}
+	}
+	
+	
+	
+	/**
+	 * @return time spent by parser stage waiting for writer stage, in nanoseconds
+	 */
+	public long getPutWait() {
+		return putWait;
+	}
+	
+	
+	
+	/**
+	 * Takes next batch of items, waiting for at least one
+	 * @param batch list to fill, it is cleared first
+	 * @param max max number of items to take
+	 * @return false if parser reached end of input and there are no more items
+	 * @throws Exception parser error, if parser failed
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean takeBatch(List<T> batch, int max) throws Exception {
+		
+		Object o;
+		
+		batch.clear();
+		if (done)
+			return false;
+		o = queue.take();
+		while (o != END) {
+			batch.add((T) o);
+			if (batch.size() >= max)
+				return true;
+			o = queue.poll();
+			if (o == null)
+				return true;
+		}
+		done = true;
+		if (parseError != null) {
+			if (parseError instanceof Exception)
+				throw (Exception) parseError;
+			throw (Error) parseError;
+		}
+		return batch.size() > 0;
+	}
+	
+	
+	
+	/**
+	 * Stops parser stage and discards queued items<br>
+	 * Used when writer fails or import is cancelled
+	 */
+	public void abort() {
+		
+		aborted = true;
+		if (parser != null) 
+			parser.interrupt();
+		queue.clear();
+	}
+	
+}
@@ -0,0 +1,543 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Catalog imports without user interface, for batch or server side refresh<br>
+ * Every import runs as a task on an executor and returns a {@link Future} with its
+ * metrics. {@link #importAll(CatalogSource, CatalogSource, CatalogSource, CatalogSource, ProgressListener)}
+ * imports all catalogs at once: categories must be done before parts and sets, because
+ * category names are copied in part and set rows, colors run alongside.<br>
+ * Imports share the database connection, so only one of them writes at a time: while
+ * an import writes, the others parse their files and queue items.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ImportService {
+
+	/**
+	 * Receives import progress, called from import threads
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param catalog catalog name
+		 * @param percent import progress, 0-100
+		 */
+		public void progress(String catalog, int percent);
+	}
+
+
+
+	/**
+	 * Running imports started by {@link ImportService#importAll(CatalogSource, CatalogSource, CatalogSource, CatalogSource, ProgressListener)}<br>
+	 * Futures of catalogs without a source are null.
+	 */
+	public static class Imports {
+
+		public final Future<ImportStats> categories;
+		public final Future<ImportStats> colors;
+		public final Future<ImportStats> parts;
+		public final Future<ImportStats> sets;
+
+
+		private Imports(Future<ImportStats> categories, Future<ImportStats> colors,
+				Future<ImportStats> parts, Future<ImportStats> sets) {
+
+			this.categories = categories;
+			this.colors = colors;
+			this.parts = parts;
+			this.sets = sets;
+		}
+
+
+		/**
+		 * Waits for all imports to end
+		 * @throws ExecutionException with cause of first failed import, in categories, colors,
+		 *   parts, sets order
+		 * @throws InterruptedException
+		 */
+		public void await() throws InterruptedException, ExecutionException {
+
+			ExecutionException failed = null;
+
+			for (Future<ImportStats> f : all()) {
+				if (f == null)
+					continue;
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (failed == null)
+						failed = e;
+				}
+			}
+			if (failed != null)
+				throw failed;
+		}
+
+
+		/**
+		 * Cancels imports not yet done
+		 */
+		public void cancel() {
+
+			for (Future<ImportStats> f : all()) {
+				if (f != null)
+					f.cancel(true);
+			}
+		}
+
+
+		/**
+		 * @return all futures, in categories, colors, parts, sets order
+		 */
+		private List<Future<ImportStats>> all() {
+			return Arrays.asList(categories, colors, parts, sets);
+		}
+	}
+
+
+
+	/**
+	 * Import task that can be failed by another task it depends on
+	 */
+	private static class ImportTask extends FutureTask<ImportStats> {
+
+		ImportTask(Callable<ImportStats> callable) {
+			super(callable);
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+	}
+
+
+
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private volatile boolean bulkLoad = false;
+	private volatile boolean shadowTable = false;
+	private volatile boolean singleType = false;
+	private volatile ConnectionProvider writerConnections = null;
+	private volatile int writers = 1;
+	private volatile int commitInterval = CatalogImporter.DEFAULT_CHECKPOINT_INTERVAL;
+
+
+
+	/**
+	 * Runs imports on an executor supplied by caller, that must be shut down by caller
+	 * @param executor executor for import tasks
+	 */
+	public ImportService(ExecutorService executor) {
+
+		if (executor == null)
+			throw new IllegalArgumentException("[ImportService] executor can't be null");
+		this.executor = executor;
+		ownExecutor = false;
+	}
+
+
+
+	/**
+	 * Runs imports on its own daemon threads, one for every catalog
+	 */
+	public ImportService() {
+
+		executor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+
+			private int n = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+
+				Thread t = new Thread(r, "ImportService-" + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ownExecutor = true;
+	}
+
+
+
+	/**
+	 * @return true if part and set tables are rebuilt with a bulk load
+	 */
+	public boolean isBulkLoad() {
+		return bulkLoad;
+	}
+
+
+
+	/**
+	 * Selects bulk load of parts and sets, see {@link BLPartImporter#setBulkLoad(boolean)}<br>
+	 * Applies to imports started after this call.
+	 * @param bulkLoad if true rebuilds tables with a bulk load, if false (default)
+	 *   updates tables incrementally
+	 */
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+
+
+
+	/**
+	 * @return true if parts are imported in a shadow table
+	 */
+	public boolean isShadowTable() {
+		return shadowTable;
+	}
+
+
+
+	/**
+	 * Selects shadow table update of parts, see {@link BLPartImporter#setShadowTable(boolean)}<br>
+	 * Only reads without full text search are served for the whole import: full text index 
+	 * is rebuilt after swap, and finds no parts until done. 
+	 * Applies to imports started after this call.
+	 * @param shadowTable if true updates a shadow table swapped in at end of import
+	 */
+	public void setShadowTable(boolean shadowTable) {
+		this.shadowTable = shadowTable;
+	}
+
+
+
+	/**
+	 * @return true if tab-delimited part and set files are declared of a single item type
+	 */
+	public boolean isSingleType() {
+		return singleType;
+	}
+
+
+
+	/**
+	 * Declares tab-delimited part and set files of a single item type, 
+	 * see {@link CatalogImporter#setSingleType(boolean)}<br>
+	 * Applies to imports started after this call.
+	 * @param singleType if true files without "Item Type" column are accepted
+	 */
+	public void setSingleType(boolean singleType) {
+		this.singleType = singleType;
+	}
+
+
+
+	/**
+	 * @return number of parallel writers for parts
+	 */
+	public int getWriters() {
+		return writers;
+	}
+
+
+
+	/**
+	 * Selects parallel writers for parts, see {@link BLPartImporter#setWriters(ConnectionProvider, int)}<br>
+	 * Applies to imports started after this call.
+	 * @param provider source of writer connections, to the same database as library
+	 * @param writers number of writers, 1 (default) to write on library connection
+	 */
+	public synchronized void setWriters(ConnectionProvider provider, int writers) {
+
+		if (writers > 1 && provider == null)
+			throw new IllegalArgumentException("[ImportService] parallel writers need a connection provider");
+		this.writerConnections = provider;
+		this.writers = Math.max(writers, 1);
+	}
+
+
+
+	/**
+	 * @return items written between commits
+	 */
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+
+
+	/**
+	 * Sets how many items are written between commits, for all catalogs<br>
+	 * Applies to imports started after this call.
+	 * @param commitInterval items between commits, 0 to commit only at end of import
+	 */
+	public void setCommitInterval(int commitInterval) {
+
+		if (commitInterval < 0)
+			throw new IllegalArgumentException("[ImportService] commit interval can't be negative");
+		this.commitInterval = commitInterval;
+	}
+
+
+
+	/**
+	 * Stops executor, if owned by this service, after running imports are done
+	 */
+	public void shutdown() {
+
+		if (ownExecutor)
+			executor.shutdown();
+	}
+
+
+
+	/*
+	 * import tasks
+	 */
+
+	private <T> Callable<ImportStats> task(final String name, final CatalogMapping<T> mapping,
+			final CatalogSink<T> sink, final boolean rebuild, final CatalogSource src,
+			final ProgressListener listener) {
+
+		final int interval = commitInterval;
+		final boolean single = singleType;
+
+		return new Callable<ImportStats>() {
+
+			@Override
+			public ImportStats call() throws Exception {
+
+				CatalogImporter<T> imp;
+				CatalogImporter.ProgressListener l = null;
+
+				imp = new CatalogImporter<T>(name, mapping, sink);
+				if (rebuild)
+					imp.setSkipUnchanged(false);
+				imp.setCheckpointInterval(interval);
+				imp.setSingleType(single);
+				if (listener != null) {
+					l = new CatalogImporter.ProgressListener() {
+
+						@Override
+						public void progress(int percent) {
+							listener.progress(name, percent);
+						}
+					};
+				}
+				imp.doImport(src, l);
+				return imp.getStats();
+			}
+		};
+	}
+
+
+	private Callable<ImportStats> categoryTask(CatalogSource src, ProgressListener listener) {
+
+		return task(BricklinkCategory.Mapping.NAME, new BricklinkCategory.Mapping(),
+				new BricklinkCategory.Sink(), false, src, listener);
+	}
+
+
+	private Callable<ImportStats> colorTask(CatalogSource src, ProgressListener listener) {
+
+		return task(BricklinkColor.Mapping.NAME, new BricklinkColor.Mapping(),
+				new BricklinkColor.Sink(), false, src, listener);
+	}
+
+
+	private Callable<ImportStats> partTask(CatalogSource src, ProgressListener listener) {
+
+		if (bulkLoad)
+			return task(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(),
+					new BricklinkPart.BulkSink(), true, src, listener);
+		if (shadowTable)
+			return task(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(),
+					new BricklinkPart.ShadowSink(), false, src, listener);
+		synchronized (this) {
+			if (writers > 1)
+				return task(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(),
+						new BricklinkPart.ParallelSink(writerConnections, writers), false, src, listener);
+		}
+		return task(BricklinkPart.Mapping.NAME, new BricklinkPart.Mapping(),
+				new BricklinkPart.Sink(), false, src, listener);
+	}
+
+
+	private Callable<ImportStats> setTask(CatalogSource src, ProgressListener listener) {
+
+		if (bulkLoad)
+			return task(BricklinkSet.Mapping.NAME, new BricklinkSet.Mapping(),
+					new BricklinkSet.BulkSink(), true, src, listener);
+		return task(BricklinkSet.Mapping.NAME, new BricklinkSet.Mapping(),
+				new BricklinkSet.Sink(), false, src, listener);
+	}
+
+
+
+	/**
+	 * Imports category catalog
+	 * @param src catalog source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importCategories(CatalogSource src, ProgressListener listener) {
+		return executor.submit(categoryTask(src, listener));
+	}
+
+
+	/**
+	 * Imports color catalog
+	 * @param src catalog source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importColors(CatalogSource src, ProgressListener listener) {
+		return executor.submit(colorTask(src, listener));
+	}
+
+
+	/**
+	 * Imports part catalog, categories must be already imported
+	 * @param src catalog source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importParts(CatalogSource src, ProgressListener listener) {
+		return executor.submit(partTask(src, listener));
+	}
+
+
+	/**
+	 * Imports set catalog, categories must be already imported
+	 * @param src catalog source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importSets(CatalogSource src, ProgressListener listener) {
+		return executor.submit(setTask(src, listener));
+	}
+
+
+
+	/**
+	 * Imports a catalog with any item type in a single pass, see {@link BLItemImporter}<br>
+	 * categories must be already imported
+	 * @param src catalog source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importItems(CatalogSource src, ProgressListener listener) {
+		return executor.submit(task(BricklinkItem.Mapping.NAME, new BricklinkItem.Mapping(),
+				new ItemRouter(), false, src, listener));
+	}
+
+
+
+	/**
+	 * Imports inventory of a set, replacing old one, see {@link BLInventoryImporter}
+	 * @param setid Bricklink set id
+	 * @param src inventory source
+	 * @param listener progress listener, can be null
+	 * @return import metrics, when done
+	 */
+	public Future<ImportStats> importInventory(String setid, CatalogSource src, ProgressListener listener) {
+		return executor.submit(task(BricklinkInventory.Mapping.NAME, new BricklinkInventory.Mapping(),
+				new BricklinkInventory.Sink(setid), true, src, listener));
+	}
+
+
+
+	/**
+	 * Imports all catalogs<br>
+	 * Colors start at once, parts and sets start when categories are imported; if
+	 * category import fails, parts and sets fail with the same cause.
+	 * A catalog with null source isn't imported.
+	 * @param categories category catalog source
+	 * @param colors color catalog source
+	 * @param parts part catalog source
+	 * @param sets set catalog source
+	 * @param listener progress listener for all catalogs, can be null
+	 * @return running imports
+	 */
+	public Imports importAll(CatalogSource categories, CatalogSource colors,
+			CatalogSource parts, CatalogSource sets, ProgressListener listener) {
+
+		final ImportTask partImport, setImport;
+		ImportTask catImport = null;
+		Future<ImportStats> colorImport = null;
+
+		partImport = parts != null ? new ImportTask(partTask(parts, listener)) : null;
+		setImport = sets != null ? new ImportTask(setTask(sets, listener)) : null;
+		if (categories != null) {
+			catImport = new ImportTask(categoryTask(categories, listener)) {
+
+				@Override
+				protected void done() {
+
+					Throwable failed = null;
+
+					try {
+						get();
+					} catch (ExecutionException e) {
+						failed = e.getCause();
+					} catch (Exception e) {
+						// cancelled or interrupted
+						failed = e;
+					}
+					start(partImport, failed);
+					start(setImport, failed);
+				}
+			};
+			executor.execute(catImport);
+		}
+		else {
+			start(partImport, null);
+			start(setImport, null);
+		}
+		if (colors != null)
+			colorImport = executor.submit(colorTask(colors, listener));
+		return new Imports(catImport, colorImport, partImport, setImport);
+	}
+
+
+	private void start(ImportTask task, Throwable failed) {
+
+		if (task == null)
+			return;
+		if (failed != null) {
+			task.fail(failed);
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.fail(e);
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.CRC32;
+
+
+/**
+ * Records last successful import of every catalog<br>
+ * Used to skip imports of a file identical to last imported one.<br>
+ * Also records last checkpoint of an import in progress, so an interrupted import 
+ * of the same file can resume.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class ImportState {
+
+	/** table name in database */
+	public static final String table = "blimportstate";
+	
+	/** catalog name */
+	protected String name;
+	/** size of last imported file */
+	protected long size;
+	/** CRC32 checksum of last imported file */
+	protected long checksum;
+	/** items committed by an import in progress */
+	protected int ckItems;
+	/** input bytes read at last checkpoint */
+	protected long ckOffset;
+	/** size of file for import in progress */
+	protected long ckSize;
+	/** last modified time of file for import in progress */
+	protected long ckFileTime;
+	
+	
+	
+	private ImportState() {
+		;
+	}
+	
+	
+	
+	/**
+	 * Init database functions<br>
+	 * creates import state table if not exists
+	 * @throws SQLException
+	 */
+	public static void init() throws SQLException {
+		
+		Statement st = BricklinkLib.db.createStatement();
+		st.executeUpdate("CREATE TABLE IF NOT EXISTS "+table+" (" +
+				"name VARCHAR(32) PRIMARY KEY," +
+				"size BIGINT," +
+				"checksum BIGINT," +
+				"lastmod TIMESTAMP," +
+				"ckitems INT DEFAULT 0," +
+				"ckoffset BIGINT DEFAULT 0," +
+				"cksize BIGINT DEFAULT 0," +
+				"ckfiletime BIGINT DEFAULT 0" +
+				")");
+	}
+	
+	
+	
+	/**
+	 * Adds checkpoint columns to import state table
+	 * @throws SQLException
+	 */
+	protected static void upgradeCheckpoint() throws SQLException {
+		
+		Statement st;
+		
+		init();
+		st = BricklinkLib.db.createStatement();
+		st.execute("ALTER TABLE "+table+" ADD COLUMN IF NOT EXISTS ckitems INT DEFAULT 0");
+		st.execute("ALTER TABLE "+table+" ADD COLUMN IF NOT EXISTS ckoffset BIGINT DEFAULT 0");
+		st.execute("ALTER TABLE "+table+" ADD COLUMN IF NOT EXISTS cksize BIGINT DEFAULT 0");
+		st.execute("ALTER TABLE "+table+" ADD COLUMN IF NOT EXISTS ckfiletime BIGINT DEFAULT 0");
+	}
+	
+	
+	
+	/**
+	 * Get state of last import for a catalog
+	 * @param name catalog name
+	 * @return last import state, or null if catalog was never imported
+	 * @throws SQLException
+	 */
+	public static ImportState get(String name) throws SQLException {
+		
+		PreparedStatement ps;
+		ResultSet rs;
+		
+		ps = BricklinkLib.db.prepareStatement("SELECT name,size,checksum,ckitems,ckoffset,cksize,ckfiletime " +
+				"FROM "+table+" WHERE name=?");
+		ps.setString(1, name);
+		rs = ps.executeQuery();
+		if (!rs.next())
+			return null;
+		ImportState is = new ImportState();
+		is.name = rs.getString("name");
+		is.size = rs.getLong("size");
+		is.checksum = rs.getLong("checksum");
+		is.ckItems = rs.getInt("ckitems");
+		is.ckOffset = rs.getLong("ckoffset");
+		is.ckSize = rs.getLong("cksize");
+		is.ckFileTime = rs.getLong("ckfiletime");
+		return is;
+	}
+	
+	
+	
+	/**
+	 * @return items committed by an interrupted import
+	 */
+	public int getCheckpointItems() {
+		return ckItems;
+	}
+	
+	
+	/**
+	 * @return input bytes read at last checkpoint of an interrupted import
+	 */
+	public long getCheckpointOffset() {
+		return ckOffset;
+	}
+	
+	
+	
+	/**
+	 * Records a successful import, and removes checkpoint
+	 * @param name catalog name
+	 * @param size size of imported file
+	 * @param checksum CRC32 checksum of imported file
+	 * @throws SQLException
+	 */
+	public static void set(String name, long size, long checksum) throws SQLException {
+		
+		PreparedStatement ps;
+		
+		ps = BricklinkLib.db.prepareStatement("MERGE INTO "+table+" (name,size,checksum,lastmod," +
+				"ckitems,ckoffset,cksize,ckfiletime) KEY(name) " +
+				"VALUES (?,?,?,NOW(),0,0,0,0)");
+		ps.setString(1, name);
+		ps.setLong(2, size);
+		ps.setLong(3, checksum);
+		ps.executeUpdate();
+	}
+	
+	
+	
+	/**
+	 * Records a checkpoint of an import in progress<br>
+	 * must be called in the same transaction that commits items
+	 * @param name catalog name
+	 * @param file imported file
+	 * @param items items committed
+	 * @param offset input bytes read
+	 * @throws SQLException
+	 */
+	public static void checkpoint(String name, File file, int items, long offset) throws SQLException {
+		
+		PreparedStatement ps;
+		
+		ps = BricklinkLib.db.prepareStatement("MERGE INTO "+table+" (name,ckitems,ckoffset,cksize,ckfiletime) KEY(name) " +
+				"VALUES (?,?,?,?,?)");
+		ps.setString(1, name);
+		ps.setInt(2, items);
+		ps.setLong(3, offset);
+		ps.setLong(4, file.length());
+		ps.setLong(5, file.lastModified());
+		ps.executeUpdate();
+	}
+	
+	
+	
+	/**
+	 * Gets checkpoint of an interrupted import of a file
+	 * @param name catalog name
+	 * @param file file to import
+	 * @return import state with checkpoint, or null if there is no checkpoint for same file
+	 * @throws SQLException
+	 */
+	public static ImportState getCheckpoint(String name, File file) throws SQLException {
+		
+		ImportState is = get(name);
+		
+		if (is == null || is.ckItems <= 0 || is.ckSize != file.length() || is.ckFileTime != file.lastModified())
+			return null;
+		return is;
+	}
+	
+	
+	
+	/**
+	 * Forget last import for a catalog, i.e. when its table is recreated
+	 * @param name catalog name
+	 * @throws SQLException
+	 */
+	public static void clear(String name) throws SQLException {
+		
+		PreparedStatement ps;
+		
+		ps = BricklinkLib.db.prepareStatement("DELETE FROM "+table+" WHERE name=?");
+		ps.setString(1, name);
+		ps.executeUpdate();
+	}
+	
+	
+	
+	/**
+	 * Checks if a file is the same as last imported for a catalog<br>
+	 * file is read only if it has same size of last import
+	 * @param name catalog name
+	 * @param file file to check
+	 * @return true if file size and checksum match last import
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static boolean isUnchanged(String name, File file) throws SQLException, IOException {
+		
+		ImportState is = get(name);
+		
+		if (is == null || is.size != file.length())
+			return false;
+		return is.checksum == checksum(file);
+	}
+	
+	
+	
+	/**
+	 * Computes CRC32 checksum of a file
+	 * @param file file to read
+	 * @return checksum
+	 * @throws IOException
+	 */
+	public static long checksum(File file) throws IOException {
+		
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[65536];
+		int n;
+		InputStream is = new FileInputStream(file);
+		
+		try {
+			while ((n = is.read(buf)) > 0) 
+				crc.update(buf, 0, n);
+		} finally {
+			is.close();
+		}
+		return crc.getValue();
+	}
+	
+}
@@ -0,0 +1,365 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Import metrics for a catalog, updated while import runs<br>
+ * Every import has its own instance; last import started for a catalog is registered on 
+ * platform MBean server as
+ * <code>bricksnspace.bricklinklib:type=ImportStats,name=&lt;catalog&gt;</code>,
+ * replacing metrics of previous import. Concurrent imports of same catalog don't
+ * share counters. Elapsed time starts when import gets database write lock.<br>
+ * Counters are updated by import writer thread only, except parse time.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ImportStats implements ImportStatsMBean {
+
+	private static final String DOMAIN = "bricksnspace.bricklinklib";
+	private static final HashMap<String,ImportStats> registry = new HashMap<String,ImportStats>();
+	/** stats of import running in current thread */
+	private static final ThreadLocal<ImportStats> current = new ThreadLocal<ImportStats>();
+
+	private final String catalog;
+	private volatile boolean running = false;
+	private volatile long startTime = 0;
+	private volatile long endTime = 0;
+	private volatile long items = 0;
+	private volatile long bytes = 0;
+	private volatile long parseNanos = 0;
+	private volatile long lookupNanos = 0;
+	private volatile long writeNanos = 0;
+	private volatile long commitNanos = 0;
+	private volatile long ftsNanos = 0;
+	/** part of full text index time spent in sink end, inside commit time */
+	private volatile long commitFtsNanos = 0;
+	private volatile long inserts = 0;
+	private volatile long updates = 0;
+	private volatile long unchanged = 0;
+	private volatile long deleted = 0;
+
+
+
+	private ImportStats(String catalog) {
+
+		this.catalog = catalog;
+	}
+
+
+
+	/**
+	 * Gets metrics of last import started for a catalog
+	 * @param catalog catalog name
+	 * @return catalog metrics, empty if no import was started
+	 */
+	public static ImportStats forCatalog(String catalog) {
+
+		ImportStats stats;
+
+		synchronized (registry) {
+			stats = registry.get(catalog);
+			if (stats == null) {
+				stats = new ImportStats(catalog);
+				publish(stats);
+			}
+		}
+		return stats;
+	}
+
+
+
+	/**
+	 * Makes metrics the published ones for their catalog, replacing MBean of previous import
+	 * @param stats metrics to publish
+	 */
+	private static void publish(ImportStats stats) {
+
+		MBeanServer server;
+		ObjectName name;
+
+		synchronized (registry) {
+			registry.put(stats.catalog, stats);
+			try {
+				server = ManagementFactory.getPlatformMBeanServer();
+				name = new ObjectName(DOMAIN+":type=ImportStats,name="+stats.catalog);
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+				server.registerMBean(stats, name);
+			} catch (JMException | SecurityException e) {
+				Logger.getGlobal().log(Level.WARNING,"[ImportStats] unable to register metrics for "+stats.catalog, e);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Metrics of import running in current thread
+	 * @return metrics, or null if no import is running in current thread
+	 */
+	public static ImportStats current() {
+		return current.get();
+	}
+
+
+
+	/**
+	 * Metrics of import running in current thread, for sinks
+	 * @param catalog catalog name
+	 * @return metrics of running import, or unregistered metrics if sink
+	 *   is used outside an import
+	 */
+	static ImportStats current(String catalog) {
+
+		ImportStats stats = current.get();
+		return stats != null ? stats : new ImportStats(catalog);
+	}
+
+
+
+	/**
+	 * Creates and publishes metrics for a new import, bound to current (writer) thread
+	 * @param catalog catalog name
+	 * @return metrics of new import
+	 */
+	static ImportStats start(String catalog) {
+
+		ImportStats stats = new ImportStats(catalog);
+
+		stats.running = true;
+		publish(stats);
+		current.set(stats);
+		return stats;
+	}
+
+
+	/**
+	 * Starts elapsed time, when import begins writing
+	 */
+	void startClock() {
+
+		startTime = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Ends import and unbinds metrics from current thread
+	 */
+	void stop() {
+
+		endTime = System.currentTimeMillis();
+		running = false;
+		current.remove();
+	}
+
+
+
+	/**
+	 * @return a copy of current values, not registered and not updated
+	 */
+	public ImportStats snapshot() {
+
+		ImportStats s = new ImportStats(catalog);
+		s.running = running;
+		s.startTime = startTime;
+		s.endTime = running ? System.currentTimeMillis() : endTime;
+		s.items = items;
+		s.bytes = bytes;
+		s.parseNanos = parseNanos;
+		s.lookupNanos = lookupNanos;
+		s.writeNanos = writeNanos;
+		s.commitNanos = commitNanos;
+		s.ftsNanos = ftsNanos;
+		s.commitFtsNanos = commitFtsNanos;
+		s.inserts = inserts;
+		s.updates = updates;
+		s.unchanged = unchanged;
+		s.deleted = deleted;
+		return s;
+	}
+
+
+
+	/*
+	 * updates, from importer and sinks
+	 */
+
+	void setProgress(long items, long bytes) {
+		this.items = items;
+		this.bytes = bytes;
+	}
+
+	void addParse(long nanos) {
+		parseNanos += nanos;
+	}
+
+	void addLookup(long nanos) {
+		lookupNanos += nanos;
+	}
+
+	void addWrite(long nanos) {
+		writeNanos += nanos;
+	}
+
+	void addCommit(long nanos) {
+		commitNanos += nanos;
+	}
+
+	void addFts(long nanos) {
+		ftsNanos += nanos;
+	}
+
+	void addCommitFts(long nanos) {
+		ftsNanos += nanos;
+		commitFtsNanos += nanos;
+	}
+
+	void addInserts(int n) {
+		inserts += n;
+	}
+
+	void addUpdates(int n) {
+		updates += n;
+	}
+
+	void addUnchanged(int n) {
+		unchanged += n;
+	}
+
+	void addDeleted(int n) {
+		deleted += n;
+	}
+
+
+
+	/*
+	 * MBean interface
+	 */
+
+	@Override
+	public String getCatalog() {
+		return catalog;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public long getItems() {
+		return items;
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public long getElapsedMillis() {
+
+		if (startTime == 0)
+			return 0;
+		return (running ? System.currentTimeMillis() : endTime) - startTime;
+	}
+
+	@Override
+	public double getItemsPerSecond() {
+		return items * 1000.0 / Math.max(getElapsedMillis(), 1);
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return bytes * 1000.0 / Math.max(getElapsedMillis(), 1);
+	}
+
+	@Override
+	public long getParseMillis() {
+		return parseNanos / 1000000;
+	}
+
+	@Override
+	public long getCategoryLookupMillis() {
+		return lookupNanos / 1000000;
+	}
+
+	@Override
+	public long getWriteMillis() {
+		// lookups are done while writing
+		return Math.max(writeNanos - lookupNanos, 0) / 1000000;
+	}
+
+	@Override
+	public long getCommitMillis() {
+		// full text index is rebuilt while committing, index removal at begin isn't in commit time
+		return (commitNanos - commitFtsNanos) / 1000000;
+	}
+
+	@Override
+	public long getFtsMillis() {
+		return ftsNanos / 1000000;
+	}
+
+	@Override
+	public long getInserts() {
+		return inserts;
+	}
+
+	@Override
+	public long getUpdates() {
+		return updates;
+	}
+
+	@Override
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	@Override
+	public long getDeleted() {
+		return deleted;
+	}
+
+
+	@Override
+	public String toString() {
+		return "ImportStats [catalog=" + catalog + ", items=" + items + ", bytes=" + bytes
+				+ ", elapsed=" + getElapsedMillis() + " ms, parse=" + getParseMillis()
+				+ " ms, lookup=" + getCategoryLookupMillis() + " ms, write=" + getWriteMillis()
+				+ " ms, commit=" + getCommitMillis() + " ms, fts=" + getFtsMillis()
+				+ " ms, inserts=" + inserts + ", updates=" + updates + ", unchanged=" + unchanged
+				+ ", deleted=" + deleted + "]";
+	}
+
+}
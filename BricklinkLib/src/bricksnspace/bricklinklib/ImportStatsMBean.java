@@ -0,0 +1,93 @@
+package bricksnspace.bricklinklib;
+
+
+/**
+ * Management interface for catalog import metrics, see {@link ImportStats}<br>
+ * All times are in milliseconds.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface ImportStatsMBean {
+
+	/**
+	 * @return catalog name
+	 */
+	public String getCatalog();
+
+	/**
+	 * @return true if an import is running
+	 */
+	public boolean isRunning();
+
+	/**
+	 * @return items read from catalog
+	 */
+	public long getItems();
+
+	/**
+	 * @return input bytes read
+	 */
+	public long getBytes();
+
+	/**
+	 * @return time since import start, or duration of last import
+	 */
+	public long getElapsedMillis();
+
+	/**
+	 * @return items read per second
+	 */
+	public double getItemsPerSecond();
+
+	/**
+	 * @return input bytes read per second
+	 */
+	public double getBytesPerSecond();
+
+	/**
+	 * @return time spent parsing input, without waiting for writer
+	 */
+	public long getParseMillis();
+
+	/**
+	 * @return time spent in category name lookups
+	 */
+	public long getCategoryLookupMillis();
+
+	/**
+	 * @return time spent writing items to database, without category lookups
+	 */
+	public long getWriteMillis();
+
+	/**
+	 * @return time spent in commits and final updates, without full text index rebuild
+	 */
+	public long getCommitMillis();
+
+	/**
+	 * @return time spent removing and rebuilding full text index
+	 */
+	public long getFtsMillis();
+
+	/**
+	 * @return rows inserted
+	 */
+	public long getInserts();
+
+	/**
+	 * @return rows updated
+	 */
+	public long getUpdates();
+
+	/**
+	 * @return rows unchanged, not written
+	 */
+	public long getUnchanged();
+
+	/**
+	 * @return rows marked as deleted
+	 */
+	public long getDeleted();
+
+}
@@ -0,0 +1,268 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+ 
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.util.Arrays;
+
+
+/**
+ * Compact in-memory index from Bricklink item id to database row id<br>
+ * Used by importers to resolve insert/update without querying database for every item,
+ * and to find rows not seen during an update (deleted by Bricklink).<br>
+ * Open addressing hash table on parallel arrays, not thread safe.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class ItemIndex {
+
+	/** returned when key is not in index */
+	public static final int NOT_FOUND = -1;
+	/** row id for items added during import, not yet stored in database */
+	public static final int NEW_ID = 0;
+	/** item is the same as stored row */
+	public static final int UNCHANGED = 0;
+	/** item is a new row */
+	public static final int INSERTED = 1;
+	/** item changes a stored row, or restores a deleted one */
+	public static final int UPDATED = 2;
+	
+	private static final byte SEEN = 1;
+	private static final byte DELETED = 2;
+	
+	private String[] keys;
+	private int[] ids;
+	private long[] hashes;
+	private byte[] flags;
+	private int size = 0;
+	private int mask;
+	
+	
+	
+	/**
+	 * Creates an empty index
+	 * @param expected number of items expected, to avoid table resize
+	 */
+	public ItemIndex(int expected) {
+		
+		int cap = 16;
+		while (cap < expected * 2) 
+			cap <<= 1;
+		keys = new String[cap];
+		ids = new int[cap];
+		hashes = new long[cap];
+		flags = new byte[cap];
+		mask = cap - 1;
+	}
+	
+	
+	
+	/**
+	 * @return number of items in index
+	 */
+	public int size() {
+		return size;
+	}
+	
+	
+	
+	private static int slot(String key, int mask) {
+		
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & mask;
+	}
+	
+	
+	
+	private int find(String key) {
+		
+		int i = slot(key, mask);
+		while (keys[i] != null) {
+			if (keys[i].equals(key))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1 - i;
+	}
+	
+	
+	
+	private void grow() {
+		
+		String[] oldKeys = keys;
+		int[] oldIds = ids;
+		long[] oldHashes = hashes;
+		byte[] oldFlags = flags;
+		int cap = keys.length * 2;
+		
+		keys = new String[cap];
+		ids = new int[cap];
+		hashes = new long[cap];
+		flags = new byte[cap];
+		mask = cap - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null)
+				continue;
+			int i = slot(oldKeys[j], mask);
+			while (keys[i] != null) 
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			ids[i] = oldIds[j];
+			hashes[i] = oldHashes[j];
+			flags[i] = oldFlags[j];
+		}
+	}
+	
+	
+	
+	/**
+	 * Adds or replaces an item in index
+	 * @param key Bricklink item id
+	 * @param id database row id
+	 * @param deleted true if row is marked as deleted in database
+	 */
+	public void put(String key, int id, boolean deleted) {
+		
+		put(key, id, deleted, 0);
+	}
+	
+	
+	
+	/**
+	 * Adds or replaces an item in index, with content hash of stored row
+	 * @param key Bricklink item id
+	 * @param id database row id
+	 * @param deleted true if row is marked as deleted in database
+	 * @param hash content hash of row in database
+	 */
+	public void put(String key, int id, boolean deleted, long hash) {
+		
+		int i = find(key);
+		if (i < 0) {
+			if ((size + 1) * 4 > keys.length * 3) {
+				grow();
+				i = find(key);
+			}
+			i = -1 - i;
+			keys[i] = key;
+			size++;
+		}
+		ids[i] = id;
+		hashes[i] = hash;
+		flags[i] = deleted ? DELETED : 0;
+	}
+	
+	
+	
+	/**
+	 * Get database row id for an item 
+	 * @param key Bricklink item id
+	 * @return row id or {@link #NOT_FOUND}
+	 */
+	public int get(String key) {
+		
+		int i = find(key);
+		if (i < 0)
+			return NOT_FOUND;
+		return ids[i];
+	}
+	
+	
+	
+	/**
+	 * Marks an item as seen in current update and returns its row id<br>
+	 * If item isn't in index it is added as seen, with {@link #NEW_ID}
+	 * @param key Bricklink item id
+	 * @return row id, {@link #NEW_ID} if item was already added during this update, 
+	 *   or {@link #NOT_FOUND} if item is new
+	 */
+	public int markSeen(String key) {
+		
+		int i = find(key);
+		if (i < 0) {
+			put(key, NEW_ID, false);
+			flags[find(key)] = SEEN;
+			return NOT_FOUND;
+		}
+		flags[i] |= SEEN;
+		return ids[i];
+	}
+	
+	
+	
+	/**
+	 * Marks an item as seen in current update and checks if it must be written<br>
+	 * If item isn't in index it is added as seen, with {@link #NEW_ID}
+	 * @param key Bricklink item id
+	 * @param hash content hash of imported item
+	 * @return true if item is new, changed or was deleted, false if stored row is the same
+	 */
+	public boolean seenChanged(String key, long hash) {
+		
+		return seenState(key, hash) != UNCHANGED;
+	}
+	
+	
+	
+	/**
+	 * Marks an item as seen in current update and checks how it must be written<br>
+	 * If item isn't in index it is added as seen, with {@link #NEW_ID}
+	 * @param key Bricklink item id
+	 * @param hash content hash of imported item
+	 * @return {@link #INSERTED} if item is new, {@link #UPDATED} if item is changed or was deleted,
+	 *   {@link #UNCHANGED} if stored row is the same
+	 */
+	public int seenState(String key, long hash) {
+		
+		int i = find(key);
+		if (i < 0) {
+			put(key, NEW_ID, false, hash);
+			flags[find(key)] = SEEN;
+			return INSERTED;
+		}
+		boolean changed = (flags[i] & DELETED) != 0 || hashes[i] != hash;
+		flags[i] |= SEEN;
+		hashes[i] = hash;
+		return changed ? UPDATED : UNCHANGED;
+	}
+	
+	
+	
+	/**
+	 * Returns row id for items not seen in current update and not already deleted 
+	 * @return array of row id
+	 */
+	public int[] getUnseen() {
+		
+		int[] unseen = new int[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && flags[i] == 0)
+				unseen[n++] = ids[i];
+		}
+		return Arrays.copyOf(unseen, n);
+	}
+	
+}
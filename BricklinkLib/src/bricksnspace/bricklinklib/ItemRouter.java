@@ -0,0 +1,251 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import bricksnspace.bricklinklib.BricklinkItem.ItemType;
+
+
+/**
+ * Routes items of a catalog with several item types to a sink for every type<br>
+ * Parts go to part table, sets to set table, minifigs, gear, books and instructions
+ * to their own item table; other item types are ignored.<br>
+ * All destinations begin with import, before any item is written: a destination may
+ * drop its full text index, and in H2 that DDL commits the open transaction. 
+ * Destinations write in the transaction of library connection: at end every destination 
+ * with items writes its pending changes, and all of them are committed together, so a 
+ * failure rolls back every destination to last checkpoint. Tables of types not in catalog 
+ * are left untouched, only their full text index is rebuilt.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class ItemRouter implements CheckpointSink<BricklinkItem> {
+
+	/**
+	 * Destination for an item type, converts items to destination entity
+	 */
+	private static abstract class Route<T> {
+
+		private final SharedTransactionSink<T> sink;
+		private final ArrayList<T> batch = new ArrayList<T>();
+		private boolean begun = false;
+		private boolean done = false;
+		private int count = 0;
+
+		Route(SharedTransactionSink<T> sink) {
+			this.sink = sink;
+		}
+
+		abstract T convert(BricklinkItem item);
+
+		void add(BricklinkItem item) {
+			batch.add(convert(item));
+		}
+
+		void begin() throws SQLException {
+
+			sink.begin();
+			begun = true;
+		}
+
+		void flush(boolean skip) throws SQLException {
+
+			if (batch.isEmpty())
+				return;
+			if (skip)
+				sink.skip(batch);
+			else
+				sink.write(batch);
+			count += batch.size();
+			batch.clear();
+		}
+
+		void checkpoint() throws SQLException {
+
+			if (begun && !done)
+				sink.checkpoint();
+		}
+
+		void finish() throws SQLException {
+
+			// no items of this type: nothing to write and nothing to mark deleted
+			if (begun && !done && count > 0)
+				sink.finish(count);
+		}
+
+		void afterCommit() throws SQLException {
+
+			if (begun && !done) {
+				done = true;
+				sink.afterCommit();
+			}
+		}
+
+		void abort() throws SQLException {
+
+			batch.clear();
+			if (begun && !done) {
+				done = true;
+				sink.abort();
+			}
+		}
+	}
+
+
+
+	/** routes by Bricklink item type */
+	private final LinkedHashMap<String,Route<?>> routes = new LinkedHashMap<String,Route<?>>();
+
+
+
+	/**
+	 * Creates a router for parts, sets and all generic item types
+	 */
+	ItemRouter() {
+
+		routes.put("P", new Route<BricklinkPart>(new BricklinkPart.Sink()) {
+			@Override
+			BricklinkPart convert(BricklinkItem item) {
+				return item.toPart();
+			}
+		});
+		routes.put("S", new Route<BricklinkSet>(new BricklinkSet.Sink()) {
+			@Override
+			BricklinkSet convert(BricklinkItem item) {
+				return item.toSet();
+			}
+		});
+		for (ItemType t : ItemType.values()) {
+			routes.put(t.getCode(), new Route<BricklinkItem>(new BricklinkItem.Sink(t)) {
+				@Override
+				BricklinkItem convert(BricklinkItem item) {
+					return item;
+				}
+			});
+		}
+	}
+
+
+
+	private void route(List<BricklinkItem> items, boolean skip) throws SQLException {
+
+		Route<?> r;
+
+		for (BricklinkItem bi : items) {
+			r = routes.get(bi.itemType);
+			if (r != null)
+				r.add(bi);
+		}
+		for (Route<?> route : routes.values()) {
+			route.flush(skip);
+		}
+	}
+
+
+
+	@Override
+	public void begin() throws SQLException {
+
+		// on failure importer aborts routes already begun
+		for (Route<?> r : routes.values()) {
+			r.begin();
+		}
+	}
+
+
+	@Override
+	public void write(List<BricklinkItem> items) throws SQLException {
+
+		route(items, false);
+	}
+
+
+	@Override
+	public void checkpoint() throws SQLException {
+
+		for (Route<?> r : routes.values()) {
+			r.checkpoint();
+		}
+	}
+
+
+	@Override
+	public void skip(List<BricklinkItem> items) throws SQLException {
+
+		route(items, true);
+	}
+
+
+	@Override
+	public void end(int count) throws SQLException {
+
+		StringBuilder sb = new StringBuilder();
+		SQLException failed = null;
+
+		for (Route<?> r : routes.values()) {
+			r.finish();
+		}
+		// a single commit for all destinations
+		BricklinkLib.db.commit();
+		BricklinkLib.db.autocommitEnable();
+		for (String type : routes.keySet()) {
+			Route<?> r = routes.get(type);
+			try {
+				r.afterCommit();
+			} catch (SQLException e) {
+				if (failed == null)
+					failed = e;
+			}
+			if (r.count > 0)
+				sb.append(' ').append(type).append('=').append(r.count);
+		}
+		Logger.getGlobal().log(Level.INFO,"[ItemRouter] "+count+" items routed:"+sb);
+		if (failed != null)
+			throw failed;
+	}
+
+
+	@Override
+	public void abort() throws SQLException {
+
+		SQLException failed = null;
+
+		for (Route<?> r : routes.values()) {
+			try {
+				r.abort();
+			} catch (SQLException e) {
+				if (failed == null)
+					failed = e;
+			}
+		}
+		if (failed != null)
+			throw failed;
+	}
+
+}
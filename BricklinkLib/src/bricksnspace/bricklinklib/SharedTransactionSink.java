@@ -0,0 +1,33 @@
+package bricksnspace.bricklinklib;
+
+import java.sql.SQLException;
+
+
+/**
+ * Checkpoint sink that can end in a transaction shared with other sinks<br>
+ * Used by {@link ItemRouter}: all destinations write on library connection, so they
+ * are committed together. {@link #finish(int)} writes all pending changes without
+ * committing; caller commits, restores autocommit and then calls {@link #afterCommit()}.<br>
+ * {@link CatalogSink#end(int)} does the same steps for a sink used alone.
+ *
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+interface SharedTransactionSink<T> extends CheckpointSink<T> {
+
+	/**
+	 * Writes all pending changes of a complete import, without committing
+	 * @param count total number of items written
+	 * @throws SQLException
+	 */
+	public void finish(int count) throws SQLException;
+
+
+	/**
+	 * Completes import after changes are committed, rebuilding indexes if needed
+	 * @throws SQLException
+	 */
+	public void afterCommit() throws SQLException;
+
+}
@@ -0,0 +1,436 @@
+/**
+	Copyright 2016-2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of BricklinkLib
+
+	BricklinkLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	BricklinkLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with BricklinkLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.bricklinklib;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Parser for Bricklink catalog downloads in tab-delimited format<br>
+ * First line is header, with column names as in Bricklink download page; columns
+ * are matched to XML tags of mapping, unknown columns are ignored. Lines are split
+ * on tabs by hand and fields are handed to mapping straight from read buffer.
+ * "Dimensions" column (like "2 x 4 x 1.2") fills ITEMDIMX, ITEMDIMY, ITEMDIMZ.<br>
+ * Header must have a column for mapping key (see {@link CatalogMapping#getKeyTag()}), 
+ * lines with empty key are skipped. For mappings of a single item type, or that route 
+ * items by type, header must have "Item Type" column too: a file without it is accepted 
+ * only if caller declares that it holds only items of mapping type, and all its 
+ * lines are accepted.
+ *
+ * @author Mario Pascucci
+ *
+ * @param <T> entity type
+ */
+public class TsvCatalogParser<T> {
+
+	private static final int BUFSIZE = 65536;
+	/** column not in mapping */
+	private static final int NO_TAG = -1;
+	/** dimensions column, split in three tags */
+	private static final int DIM_TAG = -2;
+	/** Bricklink column names and corresponding XML tags */
+	private static final String[][] COLUMNS = {
+		{ "Item Type", "ITEMTYPE" },
+		{ "Category ID", "CATEGORY" },
+		{ "Category Name", "CATEGORYNAME" },
+		{ "Number", "ITEMID" },
+		{ "Item No", "ITEMID" },
+		{ "Name", "ITEMNAME" },
+		{ "Item Name", "ITEMNAME" },
+		{ "Year Released", "ITEMYEAR" },
+		{ "Year", "ITEMYEAR" },
+		{ "Weight (in Grams)", "ITEMWEIGHT" },
+		{ "Weight", "ITEMWEIGHT" },
+		{ "Color ID", "COLOR" },
+		{ "Color Name", "COLORNAME" },
+		{ "RGB", "COLORRGB" },
+		{ "Type", "COLORTYPE" },
+		{ "Parts", "COLORCNTPARTS" },
+		{ "In Sets", "COLORCNTSETS" },
+		{ "Wanted", "COLORCNTWANTED" },
+		{ "For Sale", "COLORCNTINV" },
+		{ "Year From", "COLORYEARFROM" },
+		{ "Year To", "COLORYEARTO" },
+	};
+	private static final HashMap<String,String> columnTags = new HashMap<String,String>();
+
+	static {
+		for (String[] c : COLUMNS) {
+			columnTags.put(c[0].toLowerCase(), c[1]);
+		}
+	}
+
+	private final CatalogMapping<T> mapping;
+	private final HashMap<String,Integer> tagIds;
+	private final String itemType;
+	private final boolean singleType;
+	private final int[] dimTags = new int[3];
+	private char[] buf = new char[BUFSIZE];
+	private char[] scratch = new char[256];
+	private int[] columns = null;
+	private int typeColumn = -1;
+	private int keyColumn = -1;
+	private int items = 0;
+	private int noKey = 0;
+
+
+
+	/**
+	 * @param mapping catalog mapping, shared with XML parsers
+	 */
+	public TsvCatalogParser(CatalogMapping<T> mapping) {
+
+		this(mapping, false);
+	}
+
+
+
+	/**
+	 * @param mapping catalog mapping, shared with XML parsers
+	 * @param singleType if true file holds only items of mapping type, and can 
+	 *   lack "Item Type" column
+	 */
+	public TsvCatalogParser(CatalogMapping<T> mapping, boolean singleType) {
+
+		String[] tags = mapping.getTags();
+
+		this.mapping = mapping;
+		this.singleType = singleType;
+		itemType = mapping.getItemType();
+		tagIds = new HashMap<String,Integer>();
+		for (int i = 0; i < tags.length; i++) {
+			tagIds.put(tags[i], i);
+		}
+		dimTags[0] = tagId("ITEMDIMX");
+		dimTags[1] = tagId("ITEMDIMY");
+		dimTags[2] = tagId("ITEMDIMZ");
+	}
+
+
+
+	private int tagId(String tag) {
+
+		Integer id = tagIds.get(tag);
+		return id == null ? NO_TAG : id;
+	}
+
+
+
+	/**
+	 * Checks first bytes of a catalog: anything but XML is tab-delimited
+	 * @param b first bytes of decoded catalog
+	 * @param len number of bytes
+	 * @return true if first char, after white space and UTF-8 BOM, isn't '&lt;'
+	 */
+	public static boolean isTabular(byte[] b, int len) {
+
+		for (int i = 0; i < len; i++) {
+			switch (b[i] & 0xff) {
+			case ' ':
+			case '\t':
+			case '\r':
+			case '\n':
+			case 0xef:
+			case 0xbb:
+			case 0xbf:
+				continue;
+			case '<':
+				return false;
+			default:
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * @return number of data lines read, including lines filtered by item type
+	 *   or skipped for empty key
+	 */
+	public int getItems() {
+		return items;
+	}
+
+
+
+	/**
+	 * Reads all lines and hands off items to pipeline
+	 * @param in decoded catalog
+	 * @param pipe pipeline to writer stage
+	 * @throws IOException if file can't be read or header lacks a required column
+	 * @throws InterruptedException
+	 */
+	public void parse(Reader in, ImportPipeline<T> pipe) throws IOException, InterruptedException {
+
+		int len = 0, pos = 0, r, eol;
+		boolean eof = false;
+
+		while (true) {
+			eol = pos;
+			while (eol < len && buf[eol] != '\n')
+				eol++;
+			if (eol == len && !eof) {
+				// partial line, move to buffer start and read more
+				if (pos > 0) {
+					System.arraycopy(buf, pos, buf, 0, len - pos);
+					len -= pos;
+					eol -= pos;
+					pos = 0;
+				}
+				if (len == buf.length) {
+					char[] b = new char[buf.length * 2];
+					System.arraycopy(buf, 0, b, 0, len);
+					buf = b;
+				}
+				r = in.read(buf, len, buf.length - len);
+				if (r < 0)
+					eof = true;
+				else
+					len += r;
+				continue;
+			}
+			line(pos, eol > pos && buf[eol - 1] == '\r' ? eol - 1 : eol, pipe);
+			if (eol == len)
+				// last line, without line end
+				break;
+			pos = eol + 1;
+		}
+		if (noKey > 0)
+			Logger.getGlobal().log(Level.WARNING,"[TsvCatalogParser] "+noKey+" lines without "+
+					mapping.getKeyTag()+" skipped");
+	}
+
+
+
+	/**
+	 * Decodes a line, header or item
+	 */
+	private void line(int start, int end, ImportPipeline<T> pipe) throws IOException, InterruptedException {
+
+		int col = 0, fs = start, fe;
+		T item;
+		boolean typeOk,keyOk = false;
+
+		if (columns == null) {
+			header(start, end);
+			return;
+		}
+		if (start == end)
+			return;
+		item = mapping.newItem();
+		typeOk = itemType == null || typeColumn < 0;
+		while (fs <= end) {
+			fe = fs;
+			while (fe < end && buf[fe] != '\t')
+				fe++;
+			if (col == typeColumn && itemType != null)
+				typeOk = equalsTrimmed(itemType, fs, fe);
+			if (col == keyColumn)
+				keyOk = !isBlank(fs, fe);
+			if (col < columns.length && columns[col] != NO_TAG)
+				field(item, columns[col], fs, fe);
+			col++;
+			fs = fe + 1;
+		}
+		items++;
+		if (!keyOk)
+			noKey++;
+		else if (typeOk)
+			pipe.put(item);
+	}
+
+
+
+	/**
+	 * Maps header columns to mapping tags
+	 * @throws IOException if key column, or item type column when needed, is missing
+	 */
+	private void header(int start, int end) throws IOException {
+
+		int n = 1, col = 0, fs = start, fe;
+		String name, tag;
+		String key = mapping.getKeyTag();
+
+		if (start < end && buf[start] == '\ufeff')
+			fs = ++start;
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '\t')
+				n++;
+		}
+		columns = new int[n];
+		while (fs <= end) {
+			fe = fs;
+			while (fe < end && buf[fe] != '\t')
+				fe++;
+			name = CharParser.getTrimmed(buf, fs, fe - fs).toLowerCase();
+			if (name.equals("dimensions")) {
+				columns[col] = DIM_TAG;
+			}
+			else {
+				tag = columnTags.get(name);
+				if (tag != null && tag.equals("ITEMTYPE"))
+					typeColumn = col;
+				if (tag != null && tag.equals(key) && keyColumn < 0)
+					keyColumn = col;
+				columns[col] = tag == null ? NO_TAG : tagId(tag);
+			}
+			col++;
+			fs = fe + 1;
+		}
+		if (keyColumn < 0)
+			throw new IOException("[TsvCatalogParser] no column for "+key+" in header");
+		// a download with all item types must not be imported as a single type catalog
+		if (typeColumn < 0 && (itemType != null ? !singleType : tagIds.containsKey("ITEMTYPE")))
+			throw new IOException("[TsvCatalogParser] no \"Item Type\" column in header, "+
+					"and file isn't declared of a single item type");
+	}
+
+
+
+	private boolean isBlank(int start, int end) {
+
+		for (int i = start; i < end; i++) {
+			if (buf[i] != ' ')
+				return false;
+		}
+		return true;
+	}
+
+
+
+	private boolean equalsTrimmed(String s, int start, int end) {
+
+		while (start < end && buf[start] == ' ')
+			start++;
+		while (end > start && buf[end - 1] == ' ')
+			end--;
+		if (end - start != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (buf[start + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Hands a field to mapping, decoding numeric character references if any<br>
+	 * named entities are kept, like XML import does with Bricklink double escaped text
+	 */
+	private void field(T item, int tag, int start, int end) {
+
+		char[] text = buf;
+
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '&') {
+				end = unescape(start, end);
+				start = 0;
+				text = scratch;
+				break;
+			}
+		}
+		if (tag == DIM_TAG)
+			dimensions(item, text, start, end);
+		else
+			mapping.setField(item, tag, text, start, end - start);
+	}
+
+
+
+	/**
+	 * Splits "x x y x z" dimensions, ignoring any unit after numbers
+	 */
+	private void dimensions(T item, char[] text, int start, int end) {
+
+		int d = 0, fs = start, fe, ne;
+
+		while (d < 3 && fs <= end) {
+			fe = fs;
+			while (fe < end && text[fe] != 'x' && text[fe] != 'X')
+				fe++;
+			while (fs < fe && text[fs] == ' ')
+				fs++;
+			ne = fs;
+			while (ne < fe && (text[ne] >= '0' && text[ne] <= '9' || text[ne] == '.'))
+				ne++;
+			if (dimTags[d] != NO_TAG)
+				mapping.setField(item, dimTags[d], text, fs, ne - fs);
+			d++;
+			fs = fe + 1;
+		}
+	}
+
+
+
+	/**
+	 * Decodes numeric character references of a field in scratch buffer
+	 * @return decoded length
+	 */
+	private int unescape(int start, int end) {
+
+		int n = 0, semi, cp;
+		String ent;
+
+		if (scratch.length < end - start)
+			scratch = new char[end - start];
+		for (int i = start; i < end; i++) {
+			char c = buf[i];
+			if (c == '&') {
+				semi = i + 1;
+				while (semi < end && semi - i <= 10 && buf[semi] != ';')
+					semi++;
+				if (semi < end && buf[semi] == ';') {
+					ent = new String(buf, i + 1, semi - i - 1);
+					cp = -1;
+					if (ent.startsWith("#x") || ent.startsWith("#X")) {
+						try {
+							cp = Integer.parseInt(ent.substring(2), 16);
+						} catch (NumberFormatException e) {
+							;
+						}
+					}
+					else if (ent.startsWith("#")) {
+						cp = CharParser.parseInt(buf, i + 2, semi - i - 2);
+					}
+					// code points over 0xffff become a surrogate pair, lone surrogates are kept as text
+					if (cp > 0 && Character.isValidCodePoint(cp) && 
+							(cp < Character.MIN_SURROGATE || cp > Character.MAX_SURROGATE)) {
+						n += Character.toChars(cp, scratch, n);
+						i = semi;
+						continue;
+					}
+				}
+			}
+			scratch[n++] = c;
+		}
+		return n;
+	}
+
+}